@@ -4,6 +4,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
@@ -19,12 +21,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
@@ -32,6 +44,9 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
 
 public class MixpanelBasicTest extends AndroidTestCase {
 
@@ -73,6 +88,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
         AnalyticsMessages messages = AnalyticsMessages.getInstance(getContext());
         messages.hardKill();
         Thread.sleep(500);
+
+        EndpointHealth.getInstance(getContext()).reset();
     } // end of setUp() method definition
 
     public void testTrivialRunning() {
@@ -128,6 +145,532 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testCloseAndReopenDB() {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "CloseReopenTestDB");
+        adapter.deleteDB();
+
+        try {
+            assertEquals(1, adapter.addJSON(new JSONObject("{\"added\":\"first\"}"), MPDbAdapter.Table.EVENTS));
+            adapter.close();
+            assertEquals(2, adapter.addJSON(new JSONObject("{\"added\":\"second\"}"), MPDbAdapter.Table.EVENTS));
+
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            adapter.close();
+            adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS);
+            assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS));
+
+            final JSONArray events = new JSONArray(eventsData[1]);
+            assertEquals(2, events.length());
+            assertEquals("first", events.getJSONObject(0).getString("added"));
+            assertEquals("second", events.getJSONObject(1).getString("added"));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testRowCounts() {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "RowCountTestDB");
+        adapter.deleteDB();
+
+        try {
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, adapter.addJSON(new JSONObject("{\"count\":" + i + "}"), MPDbAdapter.Table.EVENTS));
+            }
+            assertEquals(1, adapter.addJSON(new JSONObject("{\"count\":0}"), MPDbAdapter.Table.PEOPLE));
+
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+
+            adapter.close();
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+
+            adapter.cleanupEvents(0, MPDbAdapter.Table.PEOPLE);
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+
+            adapter.cleanupEvents(Long.MAX_VALUE, MPDbAdapter.Table.PEOPLE);
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testInsertIds() {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "InsertIdTestDB");
+        adapter.deleteDB();
+
+        try {
+            final JSONObject event = new JSONObject("{\"event\":\"E\",\"properties\":{\"$insert_id\":\"0123456789abcdef\"}}");
+            assertEquals(1, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+            assertEquals(1, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+
+            final JSONObject other = new JSONObject("{\"event\":\"E\",\"properties\":{\"$insert_id\":\"fedcba9876543210\"}}");
+            assertEquals(2, adapter.addJSON(other, MPDbAdapter.Table.EVENTS));
+            assertEquals(3, adapter.addJSON(new JSONObject("{\"event\":\"E\"}"), MPDbAdapter.Table.EVENTS));
+            assertEquals(4, adapter.addJSON(new JSONObject("{\"event\":\"E\"}"), MPDbAdapter.Table.EVENTS));
+
+            // Once sent, the same insert id can be queued again
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(1, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testPartitions() {
+        final long[] day = { 100 };
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "PartitionTestDB") {
+            @Override
+            /* package */ long getCurrentDay() {
+                return day[0];
+            }
+        };
+        adapter.deleteDB();
+
+        try {
+            final JSONObject event = new JSONObject("{\"event\":\"E\",\"properties\":{\"$insert_id\":\"0123456789abcdef\"}}");
+            assertEquals(1, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+            assertEquals(2, adapter.addJSON(new JSONObject("{\"count\":1}"), MPDbAdapter.Table.EVENTS));
+            day[0] = 101;
+            assertEquals(3, adapter.addJSON(new JSONObject("{\"count\":2}"), MPDbAdapter.Table.EVENTS));
+
+            // Insert ids are checked against older partitions
+            assertEquals(3, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+
+            // If the clock goes back, rows still go after the newest ones
+            day[0] = 99;
+            assertEquals(4, adapter.addJSON(new JSONObject("{\"count\":3}"), MPDbAdapter.Table.EVENTS));
+
+            final String[] firstTwo = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 2, Integer.MAX_VALUE);
+            assertEquals("[" + event.toString() + ",{\"count\":1}]", firstTwo[1]);
+            final String[] all = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 10, Integer.MAX_VALUE);
+            assertEquals("[" + event.toString() + ",{\"count\":1},{\"count\":2},{\"count\":3}]", all[1]);
+
+            // All of the first partition, read across from the second
+            adapter.cleanupEvents(firstTwo[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(2, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            adapter.close();
+            assertEquals(2, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+
+            // The first partition is gone, so the insert id can be queued again
+            assertEquals(3, adapter.addJSON(event, MPDbAdapter.Table.EVENTS));
+            final String[] remaining = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 10, Integer.MAX_VALUE);
+            assertEquals("[{\"count\":2},{\"count\":3}," + event.toString() + "]", remaining[1]);
+
+            day[0] = 102;
+            assertEquals(4, adapter.addJSON(new JSONObject("{\"count\":4}"), MPDbAdapter.Table.EVENTS));
+            adapter.cleanupEvents(Long.MAX_VALUE, MPDbAdapter.Table.EVENTS);
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+
+            // _ids keep increasing even after every older partition is dropped
+            assertEquals(1, adapter.addJSON(new JSONObject("{\"count\":5}"), MPDbAdapter.Table.EVENTS));
+            final String[] last = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            assertTrue(Long.parseLong(last[0]) > Long.parseLong(remaining[0]));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testCompressedRecords() {
+        final MPConfig compressingConfig = new MPConfig(new Bundle()) {
+            @Override
+            public boolean getCompressStoredRecords() {
+                return true;
+            }
+        };
+        final MPConfig plainConfig = new MPConfig(new Bundle());
+
+        final MPDbAdapter compressingAdapter = new MPDbAdapter(getContext(), "CompressionTestDB", compressingConfig);
+        compressingAdapter.deleteDB();
+
+        try {
+            compressingAdapter.addJSON(new JSONObject("{\"added\":\"compressed\"}"), MPDbAdapter.Table.EVENTS);
+            compressingAdapter.close();
+
+            // Turning compression off shouldn't strand rows that were stored compressed
+            final MPDbAdapter plainAdapter = new MPDbAdapter(getContext(), "CompressionTestDB", plainConfig);
+            plainAdapter.addJSON(new JSONObject("{\"added\":\"plain\"}"), MPDbAdapter.Table.EVENTS);
+
+            final String[] eventsData = plainAdapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            final JSONArray events = new JSONArray(eventsData[1]);
+            assertEquals(2, events.length());
+            assertEquals("compressed", events.getJSONObject(0).getString("added"));
+            assertEquals("plain", events.getJSONObject(1).getString("added"));
+            plainAdapter.close();
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            compressingAdapter.deleteDB();
+        }
+    }
+
+    public void testUpgradeFromOldDatabase() {
+        getContext().deleteDatabase("UpgradeTestDB");
+        final SQLiteDatabase oldDb = getContext().openOrCreateDatabase("UpgradeTestDB", Context.MODE_PRIVATE, null);
+        oldDb.execSQL("CREATE TABLE events (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, created_at INTEGER NOT NULL);");
+        oldDb.execSQL("CREATE TABLE people (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, created_at INTEGER NOT NULL);");
+        oldDb.execSQL("CREATE INDEX IF NOT EXISTS time_idx ON events (created_at);");
+        for (int i = 0; i < 5; i++) {
+            oldDb.execSQL("INSERT INTO events (data, created_at) VALUES ('{\"old\":" + i + "}', " + System.currentTimeMillis() + ")");
+        }
+        oldDb.setVersion(3);
+        oldDb.close();
+
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "UpgradeTestDB");
+        try {
+            assertTrue(adapter.hasLegacyRows());
+            adapter.addJSON(new JSONObject("{\"new\":0}"), MPDbAdapter.Table.EVENTS);
+
+            int chunks = 0;
+            while (adapter.migrateLegacyRows(2)) {
+                chunks++;
+            }
+            assertEquals(2, chunks);
+            assertFalse(adapter.hasLegacyRows());
+            assertEquals(6, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            final JSONArray events = new JSONArray(eventsData[1]);
+            assertEquals(6, events.length());
+            assertEquals(0, events.getJSONObject(0).getInt("new"));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, events.getJSONObject(i + 1).getInt("old"));
+            }
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testQuarantineDamagedDB() throws IOException {
+        getContext().deleteDatabase("DamagedTestDB");
+        getContext().deleteDatabase("DamagedTestDB-quarantine");
+
+        final File dbFile = getContext().getDatabasePath("DamagedTestDB");
+        dbFile.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(dbFile);
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write(TestUtils.bytes("This is not a database. "));
+            }
+        } finally {
+            out.close();
+        }
+
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "DamagedTestDB");
+        try {
+            // The damaged file is set aside and the write goes to a new database
+            assertEquals(1, adapter.addJSON(new JSONObject("{\"after\":0}"), MPDbAdapter.Table.EVENTS));
+            assertTrue(adapter.hasQuarantinedRows());
+
+            assertFalse(adapter.salvageQuarantinedRows(200));
+            assertFalse(adapter.hasQuarantinedRows());
+            assertFalse(getContext().getDatabasePath("DamagedTestDB-quarantine").exists());
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testCorruptionMidBatch() {
+        getContext().deleteDatabase("MidBatchTestDB");
+        getContext().deleteDatabase("MidBatchTestDB-quarantine");
+
+        final List<String> corruptions = new ArrayList<String>();
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "MidBatchTestDB") {
+            @Override
+            /* package */ boolean insertRecord(BatchRecord record) {
+                if (record.data.contains("during") && corruptions.isEmpty()) {
+                    corruptions.add(record.data);
+                    throw new SQLiteDatabaseCorruptException("database disk image is malformed");
+                }
+                return super.insertRecord(record);
+            }
+        };
+
+        try {
+            adapter.beginBatch();
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i + 1, adapter.addJSON(new JSONObject("{\"before\":" + i + "}"), MPDbAdapter.Table.EVENTS));
+            }
+            // The damaged DB is set aside, and the records already in the batch move to the new one
+            assertEquals(4, adapter.addJSON(new JSONObject("{\"during\":0}"), MPDbAdapter.Table.EVENTS));
+            assertEquals(5, adapter.addJSON(new JSONObject("{\"after\":0}"), MPDbAdapter.Table.EVENTS));
+            adapter.endBatch();
+
+            assertEquals(1, corruptions.size());
+            assertTrue(adapter.hasQuarantinedRows());
+            assertFalse(adapter.salvageQuarantinedRows(200));
+            assertEquals(5, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+
+            // Committed, not just visible inside the batch
+            adapter.close();
+            assertEquals(5, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testSalvageQuarantinedRows() {
+        getContext().deleteDatabase("SalvageTestDB");
+        getContext().deleteDatabase("SalvageTestDB-quarantine");
+
+        // Stands in for a damaged database that was set aside with some rows still readable
+        final MPDbAdapter quarantined = new MPDbAdapter(getContext(), "SalvageTestDB-quarantine");
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "SalvageTestDB");
+        try {
+            for (int i = 0; i < 5; i++) {
+                quarantined.addJSON(new JSONObject("{\"salvaged\":" + i + "}"), MPDbAdapter.Table.EVENTS);
+            }
+            quarantined.addJSON(new JSONObject("{\"salvaged\":0}"), MPDbAdapter.Table.PEOPLE);
+            quarantined.close();
+
+            assertTrue(adapter.hasQuarantinedRows());
+            adapter.addJSON(new JSONObject("{\"new\":0}"), MPDbAdapter.Table.EVENTS);
+
+            int chunks = 0;
+            while (adapter.salvageQuarantinedRows(2)) {
+                chunks++;
+            }
+            assertEquals(2, chunks);
+            assertFalse(adapter.hasQuarantinedRows());
+            assertFalse(getContext().getDatabasePath("SalvageTestDB-quarantine").exists());
+            assertEquals(6, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            final JSONArray events = new JSONArray(eventsData[1]);
+            assertEquals(0, events.getJSONObject(0).getInt("new"));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, events.getJSONObject(i + 1).getInt("salvaged"));
+            }
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testSalvageResumesAfterRestart() {
+        getContext().deleteDatabase("ResumeSalvageTestDB");
+        getContext().deleteDatabase("ResumeSalvageTestDB-quarantine");
+
+        final MPDbAdapter quarantined = new MPDbAdapter(getContext(), "ResumeSalvageTestDB-quarantine");
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "ResumeSalvageTestDB");
+        try {
+            for (int i = 0; i < 5; i++) {
+                quarantined.addJSON(new JSONObject("{\"salvaged\":" + i + "}"), MPDbAdapter.Table.EVENTS);
+            }
+            quarantined.addJSON(new JSONObject("{\"$add\":{\"count\":1}}"), MPDbAdapter.Table.PEOPLE);
+            quarantined.close();
+
+            // Copy one chunk, send it, and then stop as if the process had died
+            assertTrue(adapter.salvageQuarantinedRows(2));
+            assertEquals(2, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertEquals(1, adapter.getRowCount(MPDbAdapter.Table.PEOPLE));
+            for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+                adapter.cleanupEvents(Long.MAX_VALUE, table);
+            }
+            adapter.close();
+
+            // A new adapter carries on from the saved progress, without copying the sent rows again
+            final MPDbAdapter restarted = new MPDbAdapter(getContext(), "ResumeSalvageTestDB");
+            assertTrue(restarted.hasQuarantinedRows());
+            while (restarted.salvageQuarantinedRows(2)) {
+                // Keep going
+            }
+            assertFalse(restarted.hasQuarantinedRows());
+            assertEquals(0, restarted.getRowCount(MPDbAdapter.Table.PEOPLE));
+            assertEquals(3, restarted.getRowCount(MPDbAdapter.Table.EVENTS));
+
+            final JSONArray events = new JSONArray(restarted.generateDataString(MPDbAdapter.Table.EVENTS)[1]);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i + 2, events.getJSONObject(i).getInt("salvaged"));
+            }
+            restarted.close();
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testSegmentLogStore() {
+        final MPConfig config = new MPConfig(new Bundle());
+        SegmentLogStore store = new SegmentLogStore(getContext(), "SegmentLogTest", config);
+        store.deleteDB();
+
+        try {
+            assertEquals(0, store.getRowCount(MPDbAdapter.Table.EVENTS));
+            store.beginBatch();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, store.addJSON(new JSONObject("{\"count\":" + i + "}"), MPDbAdapter.Table.EVENTS));
+            }
+            store.endBatch();
+            store.addJSON(new JSONObject("{\"count\":0}"), MPDbAdapter.Table.PEOPLE);
+
+            final String[] firstBatch = store.generateDataString(MPDbAdapter.Table.EVENTS, 4, Integer.MAX_VALUE);
+            final JSONArray firstEvents = new JSONArray(firstBatch[1]);
+            assertEquals(4, firstEvents.length());
+            assertEquals(0, firstEvents.getJSONObject(0).getInt("count"));
+            store.cleanupEvents(firstBatch[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(6, store.getRowCount(MPDbAdapter.Table.EVENTS));
+            store.close();
+
+            // The read cursor and the unsent records survive reopening
+            store = new SegmentLogStore(getContext(), "SegmentLogTest", config);
+            assertEquals(6, store.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertEquals(1, store.getRowCount(MPDbAdapter.Table.PEOPLE));
+            final JSONArray rest = new JSONArray(store.generateDataString(MPDbAdapter.Table.EVENTS)[1]);
+            assertEquals(6, rest.length());
+            assertEquals(4, rest.getJSONObject(0).getInt("count"));
+            assertEquals(7, store.addJSON(new JSONObject("{\"count\":10}"), MPDbAdapter.Table.EVENTS));
+
+            store.cleanupEvents(0, MPDbAdapter.Table.EVENTS);
+            assertEquals(7, store.getRowCount(MPDbAdapter.Table.EVENTS));
+            store.cleanupEvents(Long.MAX_VALUE, MPDbAdapter.Table.EVENTS);
+            assertEquals(0, store.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertNull(store.generateDataString(MPDbAdapter.Table.EVENTS));
+
+            // Reading and cleaning up a table that was never written to doesn't create any segments
+            assertEquals(0, store.getRowCount(MPDbAdapter.Table.PRIORITY_EVENTS));
+            store.cleanupEvents(Long.MAX_VALUE, MPDbAdapter.Table.PRIORITY_EVENTS);
+            assertNull(store.generateDataString(MPDbAdapter.Table.PRIORITY_EVENTS));
+            final File priorityDirectory = new File(getContext().getDir("SegmentLogTest", Context.MODE_PRIVATE),
+                    MPDbAdapter.Table.PRIORITY_EVENTS.getName());
+            assertTrue(Arrays.equals(new String[] { "cursor" }, priorityDirectory.list()));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in SegmentLogStore test");
+        } finally {
+            store.deleteDB();
+        }
+    }
+
+    public void testBatchLimits() {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchLimitTestDB");
+        adapter.deleteDB();
+
+        try {
+            final String padding = "0123456789";
+            for (int i = 0; i < 10; i++) {
+                adapter.addJSON(new JSONObject("{\"p\":\"" + padding + "\"}"), MPDbAdapter.Table.EVENTS);
+            }
+            final int rowBytes = "{\"p\":\"0123456789\"}".length();
+
+            final String[] byRows = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 3, Integer.MAX_VALUE);
+            assertEquals(3, new JSONArray(byRows[1]).length());
+            assertEquals("3", byRows[2]);
+
+            final int fourRowsOfBytes = 2 + (4 * rowBytes) + 3;
+            final String[] byBytes = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 50, fourRowsOfBytes + 1);
+            assertEquals(4, new JSONArray(byBytes[1]).length());
+            assertEquals("4", byBytes[2]);
+            assertEquals(fourRowsOfBytes, byBytes[1].length());
+
+            // A row too big for the budget still goes out on its own
+            final String[] tooBig = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 50, 1);
+            assertEquals(1, new JSONArray(tooBig[1]).length());
+
+            adapter.cleanupEvents(byBytes[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(6, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testWriteDataString() throws IOException {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "WriteDataStringTestDB");
+        adapter.deleteDB();
+
+        try {
+            final StringWriter empty = new StringWriter();
+            final RecordWriter emptyWriter = new RecordWriter(empty);
+            assertNull(adapter.writeDataString(MPDbAdapter.Table.EVENTS, 50, 1024, emptyWriter));
+            emptyWriter.finish();
+            assertEquals("[]", empty.toString());
+
+            for (int i = 0; i < 5; i++) {
+                adapter.addJSON(new JSONObject("{\"count\":" + i + "}"), MPDbAdapter.Table.EVENTS);
+            }
+
+            // Streamed batches hold exactly what generated batches do
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, 3, 1024 * 1024);
+            final StringWriter streamed = new StringWriter();
+            final RecordWriter writer = new RecordWriter(streamed);
+            assertEquals(eventsData[0], adapter.writeDataString(MPDbAdapter.Table.EVENTS, 3, 1024 * 1024, writer));
+            writer.finish();
+            assertEquals(eventsData[1], streamed.toString());
+            assertEquals(3, writer.getRecordCount());
+            assertEquals(streamed.toString().length(), writer.getLength());
+
+            // Lengths are in UTF-8 bytes, which is what goes over the wire
+            final StringWriter accented = new StringWriter();
+            final RecordWriter accentedWriter = new RecordWriter(accented);
+            accentedWriter.write("{\"name\":\"caf\u00e9\"}");
+            accentedWriter.finish();
+            assertEquals(accented.toString().getBytes("UTF-8").length, accentedWriter.getLength());
+            assertEquals(accented.toString().length() + 1, accentedWriter.getLength());
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in MPDbAdapter test");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testBatchJoining() {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchJoiningTestDB");
+        adapter.deleteDB();
+
+        try {
+            final long now = System.currentTimeMillis();
+            assertTrue(adapter.insertRecord(new MPDbAdapter.BatchRecord(MPDbAdapter.Table.EVENTS, "{\"a\":1}", null, now)));
+            assertTrue(adapter.insertRecord(new MPDbAdapter.BatchRecord(MPDbAdapter.Table.EVENTS, "{\"b\":2", null, now)));
+            assertTrue(adapter.insertRecord(new MPDbAdapter.BatchRecord(MPDbAdapter.Table.EVENTS, "{\"c\":\"\u00e9\"}", null, now)));
+            assertTrue(adapter.insertRecord(new MPDbAdapter.BatchRecord(MPDbAdapter.Table.EVENTS, "\"d\":4}", null, now)));
+
+            // Rows are joined as they are, and rows that aren't objects are left out
+            final String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS);
+            assertEquals("[{\"a\":1},{\"c\":\"\u00e9\"}]", eventsData[1]);
+            assertEquals("2", eventsData[2]);
+
+            // The rows left out are covered by the batch's id, so they're cleaned up along with it
+            adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS);
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS));
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    public void testConnectionManager() throws IOException {
+        final HttpConnectionManager connections = new HttpConnectionManager();
+        final HttpURLConnection first = connections.openConnection(new URL("https://api.mixpanel.com/track"));
+        final HttpURLConnection second = connections.openConnection(new URL("https://api.mixpanel.com/engage"));
+
+        // Connections only share a pool if they share a socket factory
+        assertSame(((HttpsURLConnection) first).getSSLSocketFactory(), ((HttpsURLConnection) second).getSSLSocketFactory());
+        assertEquals(2, connections.getRequestCount());
+        assertEquals(0, connections.getHandshakeCount()); // Nothing has connected yet
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
@@ -326,6 +869,105 @@ public class MixpanelBasicTest extends AndroidTestCase {
         assertTrue(metrics.canUpdate());
     }
 
+    public void testGroupCommit() {
+        final BlockingQueue<String> blocked = new LinkedBlockingQueue<String>();
+        final BlockingQueue<String> gate = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Integer> committedBatches = new LinkedBlockingQueue<Integer>();
+
+        // Counts the records written in each transaction. The first transaction waits
+        // at the gate, so that a burst of tracking calls piles up behind it.
+        final MPDbAdapter mockAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public void beginBatch() {
+                if (mBatches == 0) {
+                    try {
+                        blocked.put("waiting");
+                        gate.take();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.beginBatch();
+                mBatches++;
+                mRecordsInBatch = 0;
+                mInBatch = true;
+            }
+
+            @Override
+            public int addJSON(JSONObject message, MPDbAdapter.Table table) {
+                if (mInBatch) {
+                    mRecordsInBatch++;
+                }
+                return super.addJSON(message, table);
+            }
+
+            @Override
+            public void endBatch() {
+                super.endBatch();
+                if (mInBatch) {
+                    mInBatch = false;
+                    committedBatches.add(mRecordsInBatch);
+                }
+            }
+
+            private int mBatches = 0;
+            private int mRecordsInBatch = 0;
+            private boolean mInBatch = false;
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, MPDbAdapter.Table.EVENTS);
+
+        final MPConfig mockConfig = new MPConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return mockConfig;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Group Commit") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            metrics.track("first event", null);
+            assertEquals("waiting", blocked.poll(1, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 20; i++) {
+                metrics.track("burst event", null);
+            }
+            gate.put("go");
+
+            // The whole burst is committed in one transaction after the first
+            assertEquals(Integer.valueOf(1), committedBatches.poll(1, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(20), committedBatches.poll(1, TimeUnit.SECONDS));
+            assertEquals(null, committedBatches.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(21, mockAdapter.getRowCount(MPDbAdapter.Table.EVENTS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        } finally {
+            listener.hardKill();
+        }
+    }
+
     public void testMessageQueuing() {
         final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
         final SynchronizedReference<Boolean> okToDecide = new SynchronizedReference<Boolean>();
@@ -641,6 +1283,787 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testBacklogDrain() {
+        final BlockingQueue<Integer> batchSizes = new LinkedBlockingQueue<Integer>();
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+                if (null == nameValuePairs) {
+                    return TestUtils.bytes("{}");
+                }
+
+                try {
+                    final String jsonData = Base64Coder.decodeString(nameValuePairs.get(0).getValue());
+                    batchSizes.put(new JSONArray(jsonData).length());
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+
+            public int getFlushBatchSize() {
+                return 10;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Backlog Drain") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 35; i++) {
+                metrics.track("Backlog " + i, null);
+            }
+            metrics.flush();
+
+            // A single flush should empty the whole backlog, one batch at a time
+            assertEquals(Integer.valueOf(10), batchSizes.poll(2, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(10), batchSizes.poll(2, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(10), batchSizes.poll(2, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(5), batchSizes.poll(2, TimeUnit.SECONDS));
+            assertEquals(null, batchSizes.poll(1, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testMockServerTransport() {
+        final MockServerTransport server = new MockServerTransport();
+        server.setLatency(5);
+        server.failNext(1, 503);
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public boolean getGzipRequests() {
+                return true;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected Transport makeTransport(MPConfig config) {
+                return server;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Mock Server Transport") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            metrics.track("First", null);
+            metrics.track("Second", null);
+            metrics.flush();
+
+            // The first attempt fails, and the batch goes through when it's retried
+            final JSONArray batch = server.getBatches().poll(2, TimeUnit.SECONDS);
+            assertEquals(2, batch.length());
+            assertEquals("First", batch.getJSONObject(0).getString("event"));
+            assertEquals("Second", batch.getJSONObject(1).getString("event"));
+            assertEquals(null, server.getBatches().poll(1, TimeUnit.SECONDS));
+            assertTrue(server.getRequestCount() >= 2);
+        } catch (JSONException e) {
+            throw new RuntimeException("Malformed JSON received by mock server", e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testGzipRequests() throws IOException {
+        final MockServerTransport server = new MockServerTransport();
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public boolean getGzipRequests() {
+                return true;
+            }
+        };
+        final ServerMessage message = new ServerMessage(config, server);
+        final String json = "[{\"event\":\"Gzipped\",\"properties\":{\"name\":\"caf\u00e9\"}}]";
+        message.performJsonRequest("https://api.mixpanel.com/track", json);
+
+        // The body goes over the wire compressed, and says so
+        assertEquals("gzip", server.getLastContentEncoding());
+        final byte[] sent = server.getLastBody();
+        assertEquals((byte) 0x1f, sent[0]);
+        assertEquals((byte) 0x8b, sent[1]);
+
+        final InputStream gunzipped = new GZIPInputStream(new ByteArrayInputStream(sent));
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = gunzipped.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        assertEquals(json, body.toString("UTF-8"));
+    }
+
+    public void testJsonRequests() {
+        final BlockingQueue<String> jsonBodies = new LinkedBlockingQueue<String>();
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+                assertNull("Batches should not be sent as forms", nameValuePairs);
+                return TestUtils.bytes("{}");
+            }
+
+            @Override
+            public byte[] performJsonRequest(String endpointUrl, String json) {
+                try {
+                    jsonBodies.put(json);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public boolean getUseJsonRequests() {
+                return true;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test JSON Requests") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            metrics.track("First", null);
+            metrics.track("Second", null);
+            metrics.flush();
+
+            final JSONArray batch = new JSONArray(jsonBodies.poll(2, TimeUnit.SECONDS));
+            assertEquals(2, batch.length());
+            assertEquals("First", batch.getJSONObject(0).getString("event"));
+            assertEquals("Second", batch.getJSONObject(1).getString("event"));
+            assertEquals(null, jsonBodies.poll(1, TimeUnit.SECONDS));
+        } catch (JSONException e) {
+            throw new RuntimeException("Malformed JSON sent to test mock", e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testRejectedRecords() {
+        final BlockingQueue<String> sentEvents = new LinkedBlockingQueue<String>();
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) throws IOException {
+                if (null == nameValuePairs) {
+                    return TestUtils.bytes("{}");
+                }
+
+                try {
+                    final JSONArray batch = new JSONArray(Base64Coder.decodeString(nameValuePairs.get(0).getValue()));
+                    for (int i = 0; i < batch.length(); i++) {
+                        if (batch.getJSONObject(i).getString("event").equals("Poison")) {
+                            throw new ServerStatusException(400, "Test server refuses poison");
+                        }
+                    }
+                    for (int i = 0; i < batch.length(); i++) {
+                        sentEvents.put(batch.getJSONObject(i).getString("event"));
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+
+            public int getFlushBatchSize() {
+                return 10;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                final MPDbAdapter adapter = new MPDbAdapter(context, "RejectedRecordsTestDB", config);
+                adapter.deleteDB();
+                return adapter;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Rejected Records") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                metrics.track(i == 4 ? "Poison" : "Healthy " + i, null);
+            }
+            metrics.flush();
+
+            // Every healthy event gets through, in order, and only the poison event is held back
+            for (int i = 0; i < 10; i++) {
+                if (i != 4) {
+                    assertEquals("Healthy " + i, sentEvents.poll(2, TimeUnit.SECONDS));
+                }
+            }
+            assertEquals(null, sentEvents.poll(1, TimeUnit.SECONDS));
+
+            final MPDbAdapter adapter = new MPDbAdapter(getContext(), "RejectedRecordsTestDB", config);
+            assertEquals(0, adapter.getRowCount(MPDbAdapter.Table.EVENTS));
+            assertEquals(1, adapter.getDeadLetterCount());
+            adapter.deleteDB();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testEndpointHealth() {
+        final SharedPreferences preferences = getContext().getSharedPreferences("ENDPOINT_HEALTH_TEST", Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+        final String primary = "https://primary.example.com/track?ip=1";
+        final String fallback = "http://fallback.example.com/track?ip=1";
+        final String[] urls = { primary, fallback };
+        final long minute = 60 * 1000;
+
+        final EndpointHealth health = new EndpointHealth(preferences);
+        assertTrue(Arrays.equals(urls, health.order(urls, 0)));
+
+        // One or two failures just lower the success rate
+        health.recordFailure(primary, 1000);
+        health.recordFailure(primary, 2000);
+        assertTrue(health.getSuccessRate(primary) < 1.0);
+        assertEquals(2000, health.getLastFailure(primary));
+        assertTrue(Arrays.equals(urls, health.order(urls, 3000)));
+
+        // The third opens the circuit, and requests go straight to the fallback
+        health.recordFailure(primary, 3000);
+        assertTrue(Arrays.equals(new String[] { fallback }, health.order(urls, 4000)));
+
+        // Query strings don't matter
+        assertTrue(Arrays.equals(new String[] { fallback },
+                health.order(new String[] { "https://primary.example.com/track?ip=0", fallback }, 4000)));
+
+        // The only endpoint is never skipped, so there's always something to try
+        assertTrue(Arrays.equals(new String[] { primary }, health.order(new String[] { primary }, 4000)));
+
+        // Health survives a restart
+        final EndpointHealth restarted = new EndpointHealth(preferences);
+        assertTrue(Arrays.equals(new String[] { fallback }, restarted.order(urls, 4000)));
+
+        // After the cool down the primary gets another try. Failing it keeps the circuit open for longer
+        assertTrue(Arrays.equals(urls, restarted.order(urls, 3000 + minute)));
+        restarted.recordFailure(primary, 3000 + minute);
+        assertTrue(Arrays.equals(new String[] { fallback }, restarted.order(urls, 3000 + 2 * minute)));
+        assertTrue(Arrays.equals(urls, restarted.order(urls, 3000 + 3 * minute)));
+
+        // Answering closes it again
+        restarted.recordSuccess(primary, 3000 + 3 * minute);
+        assertEquals(1.0, restarted.getSuccessRate(primary));
+        restarted.recordFailure(primary, 4000 + 3 * minute);
+        assertTrue(Arrays.equals(urls, restarted.order(urls, 5000 + 3 * minute)));
+
+        // With every circuit open, the one that closes soonest is still tried
+        for (int i = 0; i < 3; i++) {
+            restarted.recordFailure(primary, 6000 + 3 * minute);
+            restarted.recordFailure(fallback, 6000 + 3 * minute);
+        }
+        assertTrue(Arrays.equals(new String[] { fallback }, restarted.order(urls, 7000 + 3 * minute)));
+
+        restarted.reset();
+        assertTrue(Arrays.equals(urls, restarted.order(urls, 7000 + 3 * minute)));
+    }
+
+    public void testBackoff() {
+        final Random random = new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.5;
+            }
+        };
+        final long second = 1000;
+        final Backoff backoff = new Backoff(10 * second, 60 * second, random);
+        assertFalse(backoff.isWaiting(0));
+
+        // Waits double, at random within the limit, until they reach the maximum
+        assertEquals(5 * second, backoff.onFailure(0, -1));
+        assertTrue(backoff.isWaiting(4 * second));
+        assertFalse(backoff.isWaiting(5 * second));
+        assertEquals(10 * second, backoff.onFailure(100 * second, -1));
+        assertEquals(20 * second, backoff.onFailure(200 * second, -1));
+        assertEquals(30 * second, backoff.onFailure(300 * second, -1));
+        assertEquals(30 * second, backoff.onFailure(400 * second, -1));
+        assertEquals(5, backoff.getFailureCount());
+
+        // Failing again while we're waiting doesn't make the wait longer
+        assertEquals(25 * second, backoff.onFailure(405 * second, -1));
+        assertEquals(5, backoff.getFailureCount());
+
+        // ...unless the server asks us to wait longer
+        assertEquals(120 * second, backoff.onFailure(410 * second, 120 * second));
+        assertEquals(530 * second, backoff.getRetryTime());
+
+        backoff.onSuccess();
+        assertFalse(backoff.isWaiting(500 * second));
+        assertEquals(0, backoff.getFailureCount());
+
+        // Retry-After is seconds or a date
+        assertEquals(120 * second, ServerMessage.parseRetryAfter("120", 0));
+        assertEquals(30 * second, ServerMessage.parseRetryAfter("Thu, 01 Jan 1970 00:01:00 GMT", 30 * second));
+        assertEquals(-1, ServerMessage.parseRetryAfter("soon", 0));
+        assertEquals(-1, ServerMessage.parseRetryAfter(null, 0));
+
+        final MockServerTransport server = new MockServerTransport();
+        server.failNext(1, 429);
+        server.setRetryAfter("45");
+        try {
+            new ServerMessage(server).performJsonRequest("http://example.com/track", "[]");
+            fail("Request should have failed");
+        } catch (final ServerStatusException e) {
+            assertEquals(429, e.getStatusCode());
+            assertEquals(45 * second, e.getRetryAfter());
+        } catch (final IOException e) {
+            fail("Unexpected failure " + e);
+        }
+    }
+
+    public void testBatchSizer() {
+        // A fast connection, a full batch in a tenth of a second: batches double up to the limit
+        final BatchSizer fast = new BatchSizer(50, 10, 300);
+        assertEquals(50, fast.getBatchSize());
+        fast.onSuccess(50, 50 * 1000, 100);
+        assertEquals(100, fast.getBatchSize());
+        fast.onSuccess(100, 100 * 1000, 200);
+        assertEquals(200, fast.getBatchSize());
+
+        // A batch that wasn't full doesn't grow the next one
+        fast.onSuccess(20, 20 * 1000, 40);
+        assertEquals(200, fast.getBatchSize());
+        fast.onSuccess(200, 200 * 1000, 400);
+        assertEquals(300, fast.getBatchSize());
+
+        // Timeouts and running out of memory halve the batch
+        fast.onTimeout();
+        assertEquals(150, fast.getBatchSize());
+        fast.onOutOfMemory();
+        assertEquals(75, fast.getBatchSize());
+
+        // A slow connection, two kilobytes a second: batches shrink toward five seconds' worth
+        final BatchSizer slow = new BatchSizer(50, 8, 300);
+        slow.onSuccess(50, 50 * 1000, 25 * 1000);
+        assertEquals(25, slow.getBatchSize());
+        slow.onSuccess(25, 25 * 1000, 12500);
+        assertEquals(12, slow.getBatchSize());
+        slow.onSuccess(12, 12 * 1000, 6000);
+        assertEquals(10, slow.getBatchSize());
+        slow.onTimeout();
+        assertEquals(8, slow.getBatchSize());
+    }
+
+    public void testFlushPolicy() {
+        final long[] state = { 0, 0, -1 }; // unmetered, charging, millis since network activity
+        final FlushPolicy.DeviceState device = new FlushPolicy.DeviceState() {
+            public boolean isOnline() {
+                return true;
+            }
+
+            public boolean isOnUnmeteredNetwork() {
+                return state[0] != 0;
+            }
+
+            public boolean isCharging() {
+                return state[1] != 0;
+            }
+
+            public long getMillisSinceNetworkActivity() {
+                return state[2];
+            }
+        };
+
+        // Without DeferBulkFlushes, everything goes right away
+        final FlushPolicy eager = new DefaultFlushPolicy(false, 60 * 1000);
+        assertTrue(eager.shouldFlush(FlushPolicy.Trigger.BULK_LIMIT, 0, device));
+
+        final FlushPolicy deferring = new DefaultFlushPolicy(true, 60 * 1000);
+        assertFalse(deferring.shouldFlush(FlushPolicy.Trigger.SCHEDULED, 0, device));
+        assertFalse(deferring.shouldFlush(FlushPolicy.Trigger.BULK_LIMIT, 59 * 1000, device));
+        assertTrue(deferring.shouldFlush(FlushPolicy.Trigger.BULK_LIMIT, 60 * 1000, device));
+
+        state[2] = 2000; // We just checked for surveys
+        assertTrue(deferring.shouldFlush(FlushPolicy.Trigger.PIGGYBACK, 0, device));
+        state[2] = 30 * 1000; // The radio has gone back to sleep
+        assertFalse(deferring.shouldFlush(FlushPolicy.Trigger.PIGGYBACK, 0, device));
+
+        state[1] = 1;
+        assertTrue(deferring.shouldFlush(FlushPolicy.Trigger.SCHEDULED, 0, device));
+        state[1] = 0;
+        state[0] = 1;
+        assertTrue(deferring.shouldFlush(FlushPolicy.Trigger.SCHEDULED, 0, device));
+
+        // A policy can hold back bulk flushes, but not flushes the app asks for
+        final BlockingQueue<FlushPolicy.Trigger> triggers = new LinkedBlockingQueue<FlushPolicy.Trigger>();
+        final BlockingQueue<String> sentEvents = new LinkedBlockingQueue<String>();
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+                if (null == nameValuePairs) {
+                    return TestUtils.bytes("{}");
+                }
+
+                try {
+                    final JSONArray batch = new JSONArray(Base64Coder.decodeString(nameValuePairs.get(0).getValue()));
+                    for (int i = 0; i < batch.length(); i++) {
+                        sentEvents.put(batch.getJSONObject(i).getString("event"));
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public int getBulkUploadLimit() {
+                return 1;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected FlushPolicy makeFlushPolicy(MPConfig config) {
+                return new FlushPolicy() {
+                    @Override
+                    public boolean shouldFlush(Trigger trigger, long deferredMillis, DeviceState device) {
+                        triggers.add(trigger);
+                        return false;
+                    }
+                };
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Flush Policy") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            metrics.track("Deferred", null);
+            assertEquals(FlushPolicy.Trigger.BULK_LIMIT, triggers.poll(2, TimeUnit.SECONDS));
+            assertEquals(null, sentEvents.poll(1, TimeUnit.SECONDS));
+
+            metrics.flush();
+            assertEquals("Deferred", sentEvents.poll(2, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testConnectivityMonitor() {
+        final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+        final ConnectivityMonitor monitor = new ConnectivityMonitor(getContext());
+        final ConnectivityMonitor.Listener listener = new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged() {
+                changes.add("changed");
+            }
+        };
+        monitor.addListener(listener);
+
+        try {
+            monitor.startListening();
+            Thread.sleep(1000); // Let the sticky connectivity broadcast arrive
+            changes.clear();
+
+            // Read once, then from the cache until something changes
+            final ConnectivityMonitor.Snapshot first = monitor.getSnapshot();
+            assertSame(first, monitor.getSnapshot());
+            assertEquals(first.isOnline(), monitor.isOnline());
+
+            // Bluetooth changes refresh the snapshot, but only connectivity changes are passed on
+            monitor.onStateChanged(false);
+            final ConnectivityMonitor.Snapshot second = monitor.getSnapshot();
+            assertNotSame(first, second);
+            assertSame(second, monitor.getSnapshot());
+            assertEquals(null, changes.poll(100, TimeUnit.MILLISECONDS));
+
+            monitor.onStateChanged(true);
+            assertEquals("changed", changes.poll(1, TimeUnit.SECONDS));
+            assertNotSame(second, monitor.getSnapshot());
+
+            // Removed listeners hear nothing more, and without the receiver every read is fresh
+            monitor.removeListener(listener);
+            monitor.onStateChanged(true);
+            assertEquals(null, changes.poll(100, TimeUnit.MILLISECONDS));
+
+            monitor.stopListening();
+            final ConnectivityMonitor.Snapshot third = monitor.getSnapshot();
+            assertNotSame(third, monitor.getSnapshot());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        } finally {
+            monitor.stopListening();
+        }
+    }
+
+    public void testDurability() {
+        final BlockingQueue<String> writtenEvents = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Integer> batchSizes = new LinkedBlockingQueue<Integer>();
+
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+                if (null == nameValuePairs) {
+                    return TestUtils.bytes("{}");
+                }
+
+                try {
+                    final String jsonData = Base64Coder.decodeString(nameValuePairs.get(0).getValue());
+                    batchSizes.put(new JSONArray(jsonData).length());
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPDbAdapter mockAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, MPDbAdapter.Table table) {
+                try {
+                    writtenEvents.put(message.getString("event"));
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return super.addJSON(message, table);
+            }
+        };
+        mockAdapter.deleteDB();
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public String getDurability(String eventName) {
+                return "Purchase".equals(eventName) ? MPConfig.DURABILITY_SYNC : MPConfig.DURABILITY_MEMORY;
+            }
+
+            public int getMemoryPersistInterval() {
+                return 60 * 1000;
+            }
+
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Durability") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            metrics.track("Scroll 1", null);
+            metrics.track("Purchase", null);
+            metrics.track("Scroll 2", null);
+
+            // Only the purchase goes straight to storage
+            assertEquals("Purchase", writtenEvents.poll(2, TimeUnit.SECONDS));
+            assertEquals(null, writtenEvents.poll(1, TimeUnit.SECONDS));
+
+            // Records held in memory are written before a flush, and sent with it
+            metrics.flush();
+            assertEquals("Scroll 1", writtenEvents.poll(2, TimeUnit.SECONDS));
+            assertEquals("Scroll 2", writtenEvents.poll(2, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(3), batchSizes.poll(2, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
+    public void testPriorityEvents() {
+        final BlockingQueue<String> sentEvents = new LinkedBlockingQueue<String>();
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+                if (null == nameValuePairs) {
+                    return TestUtils.bytes("{}");
+                }
+
+                try {
+                    final String jsonData = Base64Coder.decodeString(nameValuePairs.get(0).getValue());
+                    final JSONArray msg = new JSONArray(jsonData);
+                    for (int i = 0; i < msg.length(); i++) {
+                        sentEvents.put(msg.getJSONObject(i).getString("event"));
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Could not write message to reporting queue for tests.", e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle()) {
+            public boolean isPriorityEvent(String eventName) {
+                return "Purchase".equals(eventName);
+            }
+
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Priority Events") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                 return listener;
+            }
+        };
+
+        try {
+            metrics.track("Browse", null);
+            metrics.track("Purchase", null);
+
+            // With no scheduled flush, only the priority event is sent
+            assertEquals("Purchase", sentEvents.poll(2, TimeUnit.SECONDS));
+            assertEquals(null, sentEvents.poll(1, TimeUnit.SECONDS));
+
+            metrics.flush();
+            assertEquals("Browse", sentEvents.poll(2, TimeUnit.SECONDS));
+            assertEquals(null, sentEvents.poll(1, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Test was interrupted.");
+        }
+    }
+
     public void testTrackCharge() {
         final List<JSONObject> messages = new ArrayList<JSONObject>();
         final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
@@ -844,6 +2267,31 @@ public class MixpanelBasicTest extends AndroidTestCase {
         appInfo.metaData.putInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 1);
         appInfo.metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", 2);
         appInfo.metaData.putInt("com.mixpanel.android.MPConfig.DataExpiration", 3);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.GroupCommitLimit", 4);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.CompressStoredRecords", true);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchSize", 5);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchMaxBytes", 6);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.FlushCycleTimeLimit", 7);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.FlushCycleByteLimit", 8);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.UseSegmentLogStorage", true);
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.Durability", "sync");
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.MemoryDurabilityEvents", "Scroll, Swipe");
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.SyncDurabilityEvents", "Purchase");
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.MemoryPersistInterval", 9);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.MemoryRecordLimit", 10);
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.PriorityEvents", "Purchase,Sign Up");
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.PriorityFlushDelay", 11);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.UseJsonRequests", true);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.StreamRequests", true);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.GzipRequests", true);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.GzipLevel", 9);
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.TransportClass", "com.example.TestTransport");
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.AdaptiveBatchSize", true);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.MinFlushBatchSize", 2);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.MaxFlushBatchSize", 200);
+        appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.DeferBulkFlushes", true);
+        appInfo.metaData.putInt("com.mixpanel.android.MPConfig.MaxFlushDeferral", 60000);
+        appInfo.metaData.putString("com.mixpanel.android.MPConfig.FlushPolicyClass", "com.example.TestFlushPolicy");
         appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.DisableFallback", true);
         appInfo.metaData.putBoolean("com.mixpanel.android.MPConfig.AutoShowMixpanelUpdates", false);
 
@@ -879,6 +2327,33 @@ public class MixpanelBasicTest extends AndroidTestCase {
         assertEquals(1, testConfig.getBulkUploadLimit());
         assertEquals(2, testConfig.getFlushInterval());
         assertEquals(3, testConfig.getDataExpiration());
+        assertEquals(4, testConfig.getGroupCommitLimit());
+        assertEquals(true, testConfig.getCompressStoredRecords());
+        assertEquals(5, testConfig.getFlushBatchSize());
+        assertEquals(6, testConfig.getFlushBatchMaxBytes());
+        assertEquals(7, testConfig.getFlushCycleTimeLimit());
+        assertEquals(8, testConfig.getFlushCycleByteLimit());
+        assertEquals(true, testConfig.getUseSegmentLogStorage());
+        assertEquals(MPConfig.DURABILITY_SYNC, testConfig.getDurability());
+        assertEquals(MPConfig.DURABILITY_MEMORY, testConfig.getDurability("Swipe"));
+        assertEquals(MPConfig.DURABILITY_SYNC, testConfig.getDurability("Purchase"));
+        assertEquals(MPConfig.DURABILITY_SYNC, testConfig.getDurability("Something Else"));
+        assertEquals(9, testConfig.getMemoryPersistInterval());
+        assertEquals(10, testConfig.getMemoryRecordLimit());
+        assertEquals(true, testConfig.isPriorityEvent("Sign Up"));
+        assertEquals(false, testConfig.isPriorityEvent("Browse"));
+        assertEquals(11, testConfig.getPriorityFlushDelay());
+        assertEquals(true, testConfig.getUseJsonRequests());
+        assertEquals(true, testConfig.getStreamRequests());
+        assertEquals(true, testConfig.getGzipRequests());
+        assertEquals(9, testConfig.getGzipLevel());
+        assertEquals("com.example.TestTransport", testConfig.getTransportClass());
+        assertEquals(true, testConfig.getAdaptiveBatchSize());
+        assertEquals(2, testConfig.getMinFlushBatchSize());
+        assertEquals(200, testConfig.getMaxFlushBatchSize());
+        assertEquals(true, testConfig.getDeferBulkFlushes());
+        assertEquals(60000, testConfig.getMaxFlushDeferral());
+        assertEquals("com.example.TestFlushPolicy", testConfig.getFlushPolicyClass());
         assertEquals(true, testConfig.getDisableFallback());
         assertEquals(false, testConfig.getAutoShowMixpanelUpdates());
         assertEquals("EVENTS ENDPOINT", testConfig.getEventsEndpoint());
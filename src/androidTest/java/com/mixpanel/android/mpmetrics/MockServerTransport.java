@@ -0,0 +1,175 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.Base64Coder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A stand-in for Mixpanel's servers, for exercising the whole upload pipeline without a network.
+ * Requests can be slowed down and made to fail, to see how the library copes, and every batch
+ * received is decoded and kept for checking.
+ */
+public class MockServerTransport implements Transport {
+
+    public MockServerTransport() {
+        mRandom = new Random(0);
+        mBatches = new LinkedBlockingQueue<JSONArray>();
+    }
+
+    // Every request waits this long before it's answered
+    public synchronized void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    // Answer this fraction of requests, chosen at random, with the given status
+    public synchronized void setFailureRate(double failureRate, int failureStatus) {
+        mFailureRate = failureRate;
+        mFailureStatus = failureStatus;
+    }
+
+    // Answer the next count requests with the given status
+    public synchronized void failNext(int count, int failureStatus) {
+        mFailuresLeft = count;
+        mFailureStatus = failureStatus;
+    }
+
+    // Send this Retry-After header with failures, or null to leave it out
+    public synchronized void setRetryAfter(String retryAfter) {
+        mRetryAfter = retryAfter;
+    }
+
+    @Override
+    public Response execute(String url, Body body) throws IOException {
+        final long latencyMillis;
+        final boolean fail;
+        final int failureStatus;
+        final String retryAfter;
+        synchronized (this) {
+            mRequestCount++;
+            latencyMillis = mLatencyMillis;
+            fail = mFailuresLeft > 0 || mRandom.nextDouble() < mFailureRate;
+            if (mFailuresLeft > 0) {
+                mFailuresLeft--;
+            }
+            failureStatus = mFailureStatus;
+            retryAfter = mRetryAfter;
+        }
+
+        byte[] received = null;
+        if (null != body) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+            received = out.toByteArray();
+            synchronized (this) {
+                mBytesReceived += received.length;
+                mLastBody = received;
+                mLastContentEncoding = body.getContentEncoding();
+            }
+        }
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted while waiting to answer");
+            }
+        }
+
+        if (fail) {
+            final Map<String, String> headers = new HashMap<String, String>();
+            if (null != retryAfter) {
+                headers.put("Retry-After", retryAfter);
+            }
+            return new Response(failureStatus, TestUtils.bytes("0\n"), headers);
+        }
+
+        if (null == received) {
+            return new Response(200, TestUtils.bytes("{}")); // Decide, with nothing to show
+        }
+
+        try {
+            mBatches.put(decodeBatch(body, received));
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while recording a batch");
+        }
+        return new Response(200, TestUtils.bytes("1\n"));
+    }
+
+    // Batches received, in order
+    public BlockingQueue<JSONArray> getBatches() {
+        return mBatches;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    // The last body received, exactly as it was sent, or null if nothing has been POSTed
+    public synchronized byte[] getLastBody() {
+        return mLastBody;
+    }
+
+    // The Content-Encoding header of the last body received
+    public synchronized String getLastContentEncoding() {
+        return mLastContentEncoding;
+    }
+
+    private static JSONArray decodeBatch(Body body, byte[] received) throws IOException {
+        InputStream in = new ByteArrayInputStream(received);
+        if ("gzip".equals(body.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            decoded.write(buffer, 0, count);
+        }
+        String content = decoded.toString("UTF-8");
+
+        if (body.getContentType().startsWith("application/x-www-form-urlencoded")) {
+            String data = null;
+            for (final String field : content.split("&")) {
+                if (field.startsWith("data=")) {
+                    data = URLDecoder.decode(field.substring("data=".length()), "UTF-8");
+                }
+            }
+            content = Base64Coder.decodeString(data);
+        }
+
+        try {
+            return new JSONArray(content);
+        } catch (final JSONException e) {
+            throw new RuntimeException("Mock server received a malformed batch: " + content, e);
+        }
+    }
+
+    private final Random mRandom;
+    private final BlockingQueue<JSONArray> mBatches;
+    private long mLatencyMillis;
+    private double mFailureRate;
+    private int mFailureStatus;
+    private int mFailuresLeft;
+    private String mRetryAfter;
+    private int mRequestCount;
+    private long mBytesReceived;
+    private byte[] mLastBody;
+    private String mLastContentEncoding;
+}
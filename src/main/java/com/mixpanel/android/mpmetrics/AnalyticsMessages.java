@@ -1,11 +1,15 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
@@ -13,6 +17,7 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.StringUtils;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -22,11 +27,16 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Manage communication of events with the internal database and the Mixpanel servers.
@@ -43,6 +53,8 @@ import java.util.Map;
         mContext = context;
         mConfig = getConfig(context);
         mWorker = new Worker();
+        registerForTrimMemory();
+        mConnectivityListener = registerForConnectivityChanges();
     }
 
     /**
@@ -128,7 +140,30 @@ import java.util.Map;
         mWorker.runMessage(m);
     }
 
+    /**
+     * Asks the worker to write any records it is holding in memory to storage.
+     */
+    public void persistMemoryRecords() {
+        final Message m = Message.obtain();
+        m.what = PERSIST_MEMORY_RECORDS;
+
+        mWorker.runMessage(m);
+    }
+
+    /**
+     * Asks the worker to release its database connection. It will be reopened
+     * the next time the worker needs it.
+     */
+    public void closeDatabase() {
+        final Message m = Message.obtain();
+        m.what = CLOSE_DATABASE;
+
+        mWorker.runMessage(m);
+    }
+
     public void hardKill() {
+        ConnectivityMonitor.getInstance(mContext).removeListener(mConnectivityListener);
+
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
 
@@ -142,8 +177,11 @@ import java.util.Map;
         return mWorker.isDead();
     }
 
-    protected MPDbAdapter makeDbAdapter(Context context) {
-        return new MPDbAdapter(context);
+    protected RecordStore makeDbAdapter(Context context) {
+        if (mConfig.getUseSegmentLogStorage()) {
+            return new SegmentLogStore(context, mConfig);
+        }
+        return new MPDbAdapter(context, mConfig);
     }
 
     protected MPConfig getConfig(Context context) {
@@ -151,11 +189,88 @@ import java.util.Map;
     }
 
     protected ServerMessage getPoster() {
-        return new ServerMessage();
+        return new ServerMessage(mConfig, getTransport());
+    }
+
+    protected Transport makeTransport(MPConfig config) {
+        final String transportClass = config.getTransportClass();
+        if (null != transportClass) {
+            try {
+                return (Transport) Class.forName(transportClass).newInstance();
+            } catch (final Exception e) { // Anything from a missing class to a constructor that throws
+                Log.e(LOGTAG, "Can't use " + transportClass + " as a Transport, using HttpURLConnection instead.", e);
+            }
+        }
+        return new HttpURLConnectionTransport();
+    }
+
+    protected FlushPolicy makeFlushPolicy(MPConfig config) {
+        final String policyClass = config.getFlushPolicyClass();
+        if (null != policyClass) {
+            try {
+                return (FlushPolicy) Class.forName(policyClass).newInstance();
+            } catch (final Exception e) { // Anything from a missing class to a constructor that throws
+                Log.e(LOGTAG, "Can't use " + policyClass + " as a FlushPolicy, using the default policy instead.", e);
+            }
+        }
+        return new DefaultFlushPolicy(config.getDeferBulkFlushes(), config.getMaxFlushDeferral());
     }
 
     ////////////////////////////////////////////////////
 
+    // One transport for the life of the worker, so it can keep connections open between requests.
+    // Only called from the worker thread.
+    private Transport getTransport() {
+        if (null == mTransport) {
+            mTransport = makeTransport(mConfig);
+        }
+        return mTransport;
+    }
+
+    // The database connection is held open between messages, so let it go
+    // whenever the system asks us to trim our memory footprint.
+    @TargetApi(14)
+    private void registerForTrimMemory() {
+        if (Build.VERSION.SDK_INT >= 14) {
+            mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    // Also called when the app goes to the background, which is our
+                    // last good chance to save records before the process is killed.
+                    persistMemoryRecords();
+                    closeDatabase();
+                }
+
+                @Override
+                public void onLowMemory() {
+                    persistMemoryRecords();
+                    closeDatabase();
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                    ; // Nothing
+                }
+            });
+        }
+    }
+
+    // When we come back online, or move to wifi, a flush the FlushPolicy held back may be able to go.
+    // The monitor is shared, so the listener is removed again by hardKill.
+    private ConnectivityMonitor.Listener registerForConnectivityChanges() {
+        final ConnectivityMonitor.Listener listener = new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged() {
+                final Message m = Message.obtain();
+                m.what = CONNECTIVITY_CHANGED;
+
+                mWorker.runMessage(m);
+            }
+        };
+        ConnectivityMonitor.getInstance(mContext).addListener(listener);
+        return listener;
+    }
+
     static class EventDescription {
         public EventDescription(String eventName, JSONObject properties, String token) {
             this.eventName = eventName;
@@ -180,6 +295,17 @@ import java.util.Map;
         private final String token;
     }
 
+    // A prepared record held by the worker until it's written to storage
+    private static class MemoryRecord {
+        public MemoryRecord(JSONObject message, MPDbAdapter.Table table) {
+            this.message = message;
+            this.table = table;
+        }
+
+        public final JSONObject message;
+        public final MPDbAdapter.Table table;
+    }
+
     // Sends a message if and only if we are running with Mixpanel Message log enabled.
     // Will be called from the Mixpanel thread.
     private void logAboutMessageToMixpanel(String message) {
@@ -207,6 +333,15 @@ import java.util.Map;
                 if (mHandler == null) {
                     // We died under suspicious circumstances. Don't try to send any more events.
                     logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: " + msg.what);
+                } else if (msg.what == ENQUEUE_EVENTS || msg.what == ENQUEUE_PEOPLE) {
+                    // Records are held here and written in groups, so a burst of
+                    // tracking calls shares a single database transaction. We only
+                    // need to wake the worker if it isn't already due to drain the queue.
+                    final boolean needsWakeup = mPendingRecords.isEmpty();
+                    mPendingRecords.add(msg);
+                    if (needsWakeup) {
+                        mHandler.sendEmptyMessage(WRITE_PENDING_RECORDS);
+                    }
                 } else {
                     mHandler.sendMessage(msg);
                 }
@@ -227,6 +362,15 @@ import java.util.Map;
                 super(looper);
                 mDbAdapter = null;
                 mDecideChecker = new DecideChecker(mContext, mConfig);
+                mEndpointHealth = EndpointHealth.getInstance(mContext);
+                mFlushPolicy = makeFlushPolicy(mConfig);
+                mDeviceState = new AndroidDeviceState(mContext);
+                if (mConfig.getAdaptiveBatchSize()) {
+                    mBatchSizer = new BatchSizer(mConfig.getFlushBatchSize(),
+                            mConfig.getMinFlushBatchSize(), mConfig.getMaxFlushBatchSize());
+                } else {
+                    mBatchSizer = null;
+                }
                 mDisableFallback = mConfig.getDisableFallback();
                 mFlushInterval = mConfig.getFlushInterval();
                 mSystemInformation = new SystemInformation(mContext);
@@ -236,14 +380,21 @@ import java.util.Map;
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+                        mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), table);
+                    }
+                    if (mDbAdapter.hasLegacyRows()) {
+                        sendEmptyMessage(MIGRATE_LEGACY_ROWS);
+                    }
                 }
 
                 try {
                     int queueDepth = -1;
 
-                    if (msg.what == SET_FLUSH_INTERVAL) {
+                    if (msg.what == WRITE_PENDING_RECORDS) {
+                        queueDepth = writePendingRecords();
+                    }
+                    else if (msg.what == SET_FLUSH_INTERVAL) {
                         final Long newIntervalObj = (Long) msg.obj;
                         logAboutMessageToMixpanel("Changing flush interval to " + newIntervalObj);
                         mFlushInterval = newIntervalObj.longValue();
@@ -254,29 +405,35 @@ import java.util.Map;
                         logAboutMessageToMixpanel("Setting fallback to " + disableState);
                         mDisableFallback = disableState.booleanValue();
                     }
-                    else if (msg.what == ENQUEUE_PEOPLE) {
-                        final JSONObject message = (JSONObject) msg.obj;
-
-                        logAboutMessageToMixpanel("Queuing people record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
+                    else if (msg.what == FLUSH_QUEUE && msg.arg1 == SCHEDULED_FLUSH &&
+                            ! allowFlush(FlushPolicy.Trigger.SCHEDULED)) {
+                        // Surveys and notifications are checked on schedule even when the upload waits
+                        mDecideChecker.runDecideChecks(getPoster());
 
-                        queueDepth = mDbAdapter.addJSON(message, MPDbAdapter.Table.PEOPLE);
-                    }
-                    else if (msg.what == ENQUEUE_EVENTS) {
-                        final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
-                            queueDepth = mDbAdapter.addJSON(message, MPDbAdapter.Table.EVENTS);
-                        } catch (final JSONException e) {
-                            Log.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                        // Look again at the next interval, unless something better comes along first
+                        if (mFlushInterval >= 0 && !hasMessages(FLUSH_QUEUE)) {
+                            scheduleFlush(mFlushInterval);
                         }
                     }
                     else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
                         updateFlushFrequency();
                         mDecideChecker.runDecideChecks(getPoster());
+                        beginFlushCycle();
+                        sendAllData(mDbAdapter);
+                    }
+                    else if (msg.what == FLUSH_PRIORITY_EVENTS) {
+                        logAboutMessageToMixpanel("Flushing priority events");
+                        sendPriorityData(mDbAdapter);
+                        offerDeferredFlush(FlushPolicy.Trigger.PIGGYBACK);
+                    }
+                    else if (msg.what == CONNECTIVITY_CHANGED) {
+                        // Endpoints that failed on the old network get a fresh start on the new one
+                        mEndpointHealth.reset();
+                        offerDeferredFlush(FlushPolicy.Trigger.CONNECTIVITY_CHANGED);
+                    }
+                    else if (msg.what == DRAIN_QUEUE) {
+                        logAboutMessageToMixpanel("Continuing to flush backlog");
                         sendAllData(mDbAdapter);
                     }
                     else if (msg.what == INSTALL_DECIDE_CHECK) {
@@ -284,14 +441,35 @@ import java.util.Map;
                         final DecideUpdates check = (DecideUpdates) msg.obj;
                         mDecideChecker.addDecideCheck(check);
                         mDecideChecker.runDecideChecks(getPoster());
+                        offerDeferredFlush(FlushPolicy.Trigger.PIGGYBACK);
                     }
                     else if (msg.what == REGISTER_FOR_GCM) {
                         final String senderId = (String) msg.obj;
                         runGCMRegistration(senderId);
                     }
+                    else if (msg.what == MIGRATE_LEGACY_ROWS) {
+                        // One chunk at a time, so that tracking and flushing carry on
+                        // as usual while a large migration is underway.
+                        if (mDbAdapter.migrateLegacyRows(LEGACY_MIGRATION_CHUNK_SIZE)) {
+                            sendEmptyMessage(MIGRATE_LEGACY_ROWS);
+                        }
+                    }
+                    else if (msg.what == PERSIST_MEMORY_RECORDS) {
+                        queueDepth = writeMemoryRecords();
+                    }
+                    else if (msg.what == SALVAGE_QUARANTINED_ROWS) {
+                        if (mDbAdapter.salvageQuarantinedRows(SALVAGE_CHUNK_SIZE)) {
+                            sendEmptyMessage(SALVAGE_QUARANTINED_ROWS);
+                        }
+                    }
+                    else if (msg.what == CLOSE_DATABASE) {
+                        logAboutMessageToMixpanel("Closing Mixpanel database connection");
+                        mDbAdapter.close();
+                    }
                     else if (msg.what == KILL_WORKER) {
                         Log.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
+                            mMemoryRecords.clear();
                             mDbAdapter.deleteDB();
                             mHandler = null;
                             Looper.myLooper().quit();
@@ -302,9 +480,19 @@ import java.util.Map;
 
                     ///////////////////////////
 
-                    if (queueDepth >= mConfig.getBulkUploadLimit()) {
+                    if (queueDepth >= mConfig.getBulkUploadLimit() && mBackoff.isWaiting(SystemClock.elapsedRealtime())) {
+                        // Records keep piling up while the network or the server is failing, and
+                        // sending them now would only add to the trouble. The retry will take them.
+                        logAboutMessageToMixpanel("Queue depth " + queueDepth + " is past the bulk upload limit, but waiting " +
+                                (mBackoff.getRetryTime() - SystemClock.elapsedRealtime()) + " ms for the last failure to clear");
+                    } else if (queueDepth >= mConfig.getBulkUploadLimit() && allowBulkFlush()) {
                         logAboutMessageToMixpanel("Flushing queue due to bulk upload limit");
                         updateFlushFrequency();
+                        // While a backlog is draining, records tracked in the meantime go in the same flush
+                        // cycle, so tracking past the bulk limit can't keep renewing the cycle's budget.
+                        if (!hasMessages(DRAIN_QUEUE)) {
+                            beginFlushCycle();
+                        }
                         sendAllData(mDbAdapter);
                     } else if (queueDepth > 0 && !hasMessages(FLUSH_QUEUE)) {
                         // The !hasMessages(FLUSH_QUEUE) check is a courtesy for the common case
@@ -315,7 +503,19 @@ import java.util.Map;
 
                         logAboutMessageToMixpanel("Queue depth " + queueDepth + " - Adding flush in " + mFlushInterval);
                         if (mFlushInterval >= 0) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
+                            scheduleFlush(mFlushInterval);
+                        }
+                    }
+
+                    if (msg.what != CLOSE_DATABASE && msg.what != KILL_WORKER) {
+                        // Keep the database open while we're busy, and close it
+                        // once we've been quiet for a while.
+                        removeMessages(CLOSE_DATABASE);
+                        sendEmptyMessageDelayed(CLOSE_DATABASE, DATABASE_IDLE_TIMEOUT);
+
+                        // Any write may have found the database damaged and set it aside.
+                        if (mDbAdapter.hasQuarantinedRows() && !hasMessages(SALVAGE_QUARANTINED_ROWS)) {
+                            sendEmptyMessage(SALVAGE_QUARANTINED_ROWS);
                         }
                     }
                 } catch (final RuntimeException e) {
@@ -332,6 +532,115 @@ import java.util.Map;
                 }
             }// handleMessage
 
+            // Writes up to GroupCommitLimit pending records in a single transaction,
+            // and returns the deepest resulting queue depth, or -1 if nothing was written.
+            private int writePendingRecords() {
+                final List<Message> batch = new ArrayList<Message>();
+                synchronized (mHandlerLock) {
+                    final int limit = Math.max(1, mConfig.getGroupCommitLimit());
+                    while (batch.size() < limit && ! mPendingRecords.isEmpty()) {
+                        batch.add(mPendingRecords.removeFirst());
+                    }
+
+                    if (! mPendingRecords.isEmpty()) {
+                        // Jump the queue, since the remaining records were all
+                        // submitted before anything that is waiting behind us.
+                        sendMessageAtFrontOfQueue(obtainMessage(WRITE_PENDING_RECORDS));
+                    }
+                }
+
+                int queueDepth = -1;
+                boolean wrotePriorityEvents = false;
+                mDbAdapter.beginBatch();
+                try {
+                    for (final Message record : batch) {
+                        final JSONObject message;
+                        final MPDbAdapter.Table table;
+                        final String durability;
+                        if (record.what == ENQUEUE_PEOPLE) {
+                            message = (JSONObject) record.obj;
+                            table = MPDbAdapter.Table.PEOPLE;
+                            durability = mConfig.getDurability();
+                            logAboutMessageToMixpanel("Queuing people record for sending later");
+                        }
+                        else if (record.what == ENQUEUE_EVENTS) {
+                            final EventDescription eventDescription = (EventDescription) record.obj;
+                            try {
+                                message = prepareEventObject(eventDescription);
+                            } catch (final JSONException e) {
+                                Log.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                                continue;
+                            }
+                            if (mConfig.isPriorityEvent(eventDescription.getEventName())) {
+                                table = MPDbAdapter.Table.PRIORITY_EVENTS;
+                                wrotePriorityEvents = true;
+                            } else {
+                                table = MPDbAdapter.Table.EVENTS;
+                            }
+                            durability = mConfig.getDurability(eventDescription.getEventName());
+                            logAboutMessageToMixpanel("Queuing event for sending later");
+                        } else {
+                            continue;
+                        }
+                        logAboutMessageToMixpanel("    " + message.toString());
+
+                        if (MPConfig.DURABILITY_MEMORY.equals(durability) && table != MPDbAdapter.Table.PRIORITY_EVENTS) {
+                            holdInMemory(message, table);
+                        } else if (MPConfig.DURABILITY_SYNC.equals(durability)) {
+                            // Commit everything so far, then this record on its own
+                            mDbAdapter.endBatch();
+                            queueDepth = Math.max(queueDepth, mDbAdapter.addJSON(message, table));
+                            mDbAdapter.beginBatch();
+                        } else {
+                            queueDepth = Math.max(queueDepth, mDbAdapter.addJSON(message, table));
+                        }
+                    }
+                } finally {
+                    mDbAdapter.endBatch();
+                }
+
+                logAboutMessageToMixpanel("Wrote " + batch.size() + " records in a single transaction");
+                if (wrotePriorityEvents && !hasMessages(FLUSH_PRIORITY_EVENTS)) {
+                    sendEmptyMessageDelayed(FLUSH_PRIORITY_EVENTS, mConfig.getPriorityFlushDelay());
+                }
+                return queueDepth;
+            }
+
+            private void holdInMemory(JSONObject message, MPDbAdapter.Table table) {
+                mMemoryRecords.add(new MemoryRecord(message, table));
+                if (mMemoryRecords.size() > Math.max(1, mConfig.getMemoryRecordLimit())) {
+                    mMemoryRecords.removeFirst();
+                    Log.w(LOGTAG, "Too many records held in memory, dropping the oldest one.");
+                }
+
+                if (!hasMessages(PERSIST_MEMORY_RECORDS)) {
+                    sendEmptyMessageDelayed(PERSIST_MEMORY_RECORDS, mConfig.getMemoryPersistInterval());
+                }
+            }
+
+            // Writes all records held in memory in a single transaction, and
+            // returns the deepest resulting queue depth, or -1 if nothing was written.
+            private int writeMemoryRecords() {
+                removeMessages(PERSIST_MEMORY_RECORDS);
+                if (mMemoryRecords.isEmpty()) {
+                    return -1;
+                }
+
+                int queueDepth = -1;
+                mDbAdapter.beginBatch();
+                try {
+                    for (final MemoryRecord record : mMemoryRecords) {
+                        queueDepth = Math.max(queueDepth, mDbAdapter.addJSON(record.message, record.table));
+                    }
+                } finally {
+                    mDbAdapter.endBatch();
+                }
+
+                logAboutMessageToMixpanel("Wrote " + mMemoryRecords.size() + " records held in memory");
+                mMemoryRecords.clear();
+                return queueDepth;
+            }
+
             private void runGCMRegistration(String senderID) {
                 final String registrationId;
                 try {
@@ -371,7 +680,7 @@ import java.util.Map;
                 });
             }
 
-            private void sendAllData(MPDbAdapter dbAdapter) {
+            private void sendAllData(RecordStore dbAdapter) {
                 final ServerMessage poster = getPoster();
                 if (! poster.isOnline(mContext)) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
@@ -379,76 +688,308 @@ import java.util.Map;
                 }
 
                 logAboutMessageToMixpanel("Sending records to Mixpanel");
-                if (mDisableFallback) {
-                    sendData(dbAdapter, MPDbAdapter.Table.EVENTS, new String[]{ mConfig.getEventsEndpoint() });
-                    sendData(dbAdapter, MPDbAdapter.Table.PEOPLE, new String[]{ mConfig.getPeopleEndpoint() });
-                 } else {
-                    sendData(dbAdapter, MPDbAdapter.Table.EVENTS,
-                             new String[]{ mConfig.getEventsEndpoint(), mConfig.getEventsFallbackEndpoint() });
-                    sendData(dbAdapter, MPDbAdapter.Table.PEOPLE,
-                             new String[]{ mConfig.getPeopleEndpoint(), mConfig.getPeopleFallbackEndpoint() });
+                writeMemoryRecords();
+
+                boolean moreToSend = false;
+                for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+                    moreToSend = sendData(dbAdapter, table, getEndpoints(table)) || moreToSend;
+                }
+
+                if (moreToSend) {
+                    final long cycleTime = SystemClock.elapsedRealtime() - mFlushCycleStartTime;
+                    if (cycleTime < mConfig.getFlushCycleTimeLimit() && mFlushCycleBytes < mConfig.getFlushCycleByteLimit()) {
+                        // Send the next batch from the back of the queue, so that records
+                        // tracked in the meantime are written before we carry on.
+                        if (!hasMessages(DRAIN_QUEUE)) {
+                            sendEmptyMessage(DRAIN_QUEUE);
+                        }
+                    } else {
+                        logAboutMessageToMixpanel("Flush cycle used up its budget after " + cycleTime + " ms and " +
+                                mFlushCycleBytes + " bytes, the rest of the backlog will go with the next flush.");
+                    }
                 }
             }
 
-            private void sendData(MPDbAdapter dbAdapter, MPDbAdapter.Table table, String[] urls) {
-                final ServerMessage poster = getPoster();
-                final String[] eventsData = dbAdapter.generateDataString(table);
+            // Sends only the priority lane, without waiting for the next scheduled flush.
+            private void sendPriorityData(RecordStore dbAdapter) {
+                if (! getPoster().isOnline(mContext)) {
+                    logAboutMessageToMixpanel("Not flushing priority events because the device is not connected to the internet.");
+                    return;
+                }
+
+                // Keep going until the lane is empty or a batch fails, but give up if a sent batch couldn't
+                // be removed, so it isn't sent over and over, or if this has taken as long as a flush cycle may.
+                final long startTime = SystemClock.elapsedRealtime();
+                final String[] urls = getEndpoints(MPDbAdapter.Table.PRIORITY_EVENTS);
+                int rowCount = dbAdapter.getRowCount(MPDbAdapter.Table.PRIORITY_EVENTS);
+                while (sendData(dbAdapter, MPDbAdapter.Table.PRIORITY_EVENTS, urls)) {
+                    final int remaining = dbAdapter.getRowCount(MPDbAdapter.Table.PRIORITY_EVENTS);
+                    if (remaining >= rowCount) {
+                        Log.e(LOGTAG, "Priority events were sent but could not be removed, leaving the rest for the next flush.");
+                        break;
+                    }
+                    if (SystemClock.elapsedRealtime() - startTime >= mConfig.getFlushCycleTimeLimit()) {
+                        logAboutMessageToMixpanel("Priority events are taking too long, the rest will go with the next flush.");
+                        break;
+                    }
+                    rowCount = remaining;
+                }
+            }
+
+            // Endpoints with open circuits are left out, unless every circuit is open
+            private String[] getEndpoints(MPDbAdapter.Table table) {
+                final String[] endpoints;
+                if (table == MPDbAdapter.Table.PEOPLE) {
+                    if (mDisableFallback) {
+                        endpoints = new String[]{ mConfig.getPeopleEndpoint() };
+                    } else {
+                        endpoints = new String[]{ mConfig.getPeopleEndpoint(), mConfig.getPeopleFallbackEndpoint() };
+                    }
+                } else if (mDisableFallback) {
+                    endpoints = new String[]{ mConfig.getEventsEndpoint() };
+                } else {
+                    endpoints = new String[]{ mConfig.getEventsEndpoint(), mConfig.getEventsFallbackEndpoint() };
+                }
+                return mEndpointHealth.order(endpoints);
+            }
 
-                if (eventsData != null) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+            // Each scheduled or forced flush starts a new budget for draining the backlog.
+            private void beginFlushCycle() {
+                mFlushCycleStartTime = SystemClock.elapsedRealtime();
+                mFlushCycleBytes = 0;
+                mFlushDeferredSince = -1;
+            }
 
+            // Returns true if the batch was delivered or set aside and there are more records waiting in the table.
+            private boolean sendData(RecordStore dbAdapter, MPDbAdapter.Table table, String[] urls) {
+                final ServerMessage poster = getPoster();
+                final Integer batchLimit = mRejectedBatchLimits.get(table);
+                final int maxRows = null == batchLimit ? getBatchSize() : batchLimit;
+
+                // Streamed batches are read from storage as they're sent, so all we know
+                // up front is whether there's anything to send.
+                final StreamingBatch streamingBatch;
+                final String[] eventsData;
+                if (mConfig.getStreamRequests()) {
+                    if (dbAdapter.getRowCount(table) <= 0) {
+                        return false;
+                    }
+                    streamingBatch = new StreamingBatch(dbAdapter, table, maxRows, mConfig.getFlushBatchMaxBytes());
+                    eventsData = null;
+                } else {
+                    streamingBatch = null;
+                    eventsData = null == batchLimit && null == mBatchSizer ?
+                            dbAdapter.generateDataString(table) :
+                            dbAdapter.generateDataString(table, maxRows, mConfig.getFlushBatchMaxBytes());
+                    if (null == eventsData) {
+                        return false;
+                    }
+                }
+                final String rawMessage = null == eventsData ? null : eventsData[1];
+                final int recordCount = null == eventsData ? 0 : Integer.parseInt(eventsData[2]);
+
+                // JSON bodies are sent as they are. Form bodies need their own encoded copy of the batch.
+                final boolean jsonBody = mConfig.getUseJsonRequests();
+                List<NameValuePair> params = null;
+                if (null != rawMessage && ! jsonBody) {
                     final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+                    params = new ArrayList<NameValuePair>(2);
                     params.add(new BasicNameValuePair("data", encodedData));
                     if (MPConfig.DEBUG) {
                         params.add(new BasicNameValuePair("verbose", "1"));
                     }
+                }
 
-                    boolean deleteEvents = true;
-                    byte[] response;
-                    for (String url : urls) {
-                        try {
+                boolean deleteEvents = true;
+                int rejectedStatus = 0;
+                long retryAfter = -1;
+                byte[] response;
+                for (String url : urls) {
+                    final long requestStart = SystemClock.elapsedRealtime();
+                    try {
+                        if (null != streamingBatch) {
+                            response = poster.performStreamingRequest(MPConfig.DEBUG ? withVerbose(url) : url, streamingBatch);
+                        } else if (jsonBody) {
+                            response = poster.performJsonRequest(MPConfig.DEBUG ? withVerbose(url) : url, rawMessage);
+                        } else {
                             response = poster.performRequest(url, params);
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            if (null == response) {
-                                if (MPConfig.DEBUG) {
-                                    Log.d(LOGTAG, "Response was null, unexpected failure posting to " + url + ".");
-                                }
+                        }
+                        deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
+                        mEndpointHealth.recordSuccess(url);
+                        if (null != mBatchSizer) {
+                            final long elapsed = SystemClock.elapsedRealtime() - requestStart;
+                            if (null == rawMessage) {
+                                mBatchSizer.onSuccess(streamingBatch.getRecordCount(), streamingBatch.getLength(), elapsed);
                             } else {
-                                String parsedResponse;
-                                try {
-                                    parsedResponse = new String(response, "UTF-8");
-                                } catch (UnsupportedEncodingException e) {
-                                    throw new RuntimeException("UTF not supported on this platform?", e);
-                                }
-
-                                logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
-                                logAboutMessageToMixpanel("Response was " + parsedResponse);
+                                mBatchSizer.onSuccess(recordCount, StringUtils.utf8Length(rawMessage), elapsed);
                             }
-                            break;
-                        } catch (final OutOfMemoryError e) {
-                            Log.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                            break;
-                        } catch (final MalformedURLException e) {
-                            Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                            break;
-                        } catch (final IOException e) {
-                            if (MPConfig.DEBUG)
-                                Log.d(LOGTAG, "Cannot post message to " + url + ".", e);
-                            deleteEvents = false;
+                        }
+                        if (null == response) {
+                            if (MPConfig.DEBUG) {
+                                Log.d(LOGTAG, "Response was null, unexpected failure posting to " + url + ".");
+                            }
+                        } else {
+                            String parsedResponse;
+                            try {
+                                parsedResponse = new String(response, "UTF-8");
+                            } catch (UnsupportedEncodingException e) {
+                                throw new RuntimeException("UTF not supported on this platform?", e);
+                            }
+
+                            logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" +
+                                    (null == rawMessage ? streamingBatch.getRecordCount() + " streamed records" : rawMessage));
+                            logAboutMessageToMixpanel("Response was " + parsedResponse);
+                        }
+                        break;
+                    } catch (final OutOfMemoryError e) {
+                        Log.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                        if (null != mBatchSizer) {
+                            mBatchSizer.onOutOfMemory();
+                            deleteEvents = false; // Kept, to be sent again in a smaller batch
+                        }
+                        break;
+                    } catch (final MalformedURLException e) {
+                        Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+                        break;
+                    } catch (final ServerStatusException e) {
+                        if (MPConfig.DEBUG)
+                            Log.d(LOGTAG, "Cannot post message to " + url + ".", e);
+                        deleteEvents = false;
+                        if (e.isRejection()) {
+                            mEndpointHealth.recordSuccess(url); // The endpoint is fine, it's the records it won't take
+                            rejectedStatus = e.getStatusCode();
+                            break; // The fallback would refuse the same records
+                        }
+                        mEndpointHealth.recordFailure(url);
+                        if (e.getRetryAfter() >= 0) {
+                            retryAfter = e.getRetryAfter();
+                            break; // The server asked us to slow down, so we won't try it another way right now
+                        }
+                    } catch (final IOException e) {
+                        if (MPConfig.DEBUG)
+                            Log.d(LOGTAG, "Cannot post message to " + url + ".", e);
+                        deleteEvents = false;
+                        mEndpointHealth.recordFailure(url);
+                        if (e instanceof SocketTimeoutException && null != mBatchSizer) {
+                            mBatchSizer.onTimeout();
                         }
                     }
+                }
 
-                    if (deleteEvents) {
-                        logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table);
-                    } else {
-                        logAboutMessageToMixpanel("Retrying this batch of events.");
-                        if (!hasMessages(FLUSH_QUEUE)) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
+                // Null if a streamed batch never made it into a request
+                final String lastId = null == eventsData ? streamingBatch.getLastId() : eventsData[0];
+
+                if (0 != rejectedStatus && null != lastId) {
+                    final int batchSize = null == rawMessage ? streamingBatch.getRecordCount() : recordCount;
+                    isolateRejectedRecords(dbAdapter, table, lastId, batchSize, rawMessage, rejectedStatus);
+                    mBackoff.onSuccess();
+                    return dbAdapter.getRowCount(table) > 0;
+                } else if (deleteEvents && null != lastId) {
+                    logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
+                    dbAdapter.cleanupEvents(lastId, table);
+                    mBackoff.onSuccess();
+                    mFlushCycleBytes += null == rawMessage ? streamingBatch.getLength() : StringUtils.utf8Length(rawMessage);
+                    if (null != batchLimit) {
+                        // Past the refused records, so grow back toward full size batches
+                        if (batchLimit * 2 >= getBatchSize()) {
+                            mRejectedBatchLimits.remove(table);
+                        } else {
+                            mRejectedBatchLimits.put(table, batchLimit * 2);
                         }
                     }
+                    return dbAdapter.getRowCount(table) > 0;
+                } else {
+                    logAboutMessageToMixpanel("Retrying this batch of events.");
+                    scheduleRetry(retryAfter);
+                }
+                return false;
+            }
+
+            // Replaces any scheduled flush with a retry after the backoff delay, so that
+            // the periodic flush doesn't come around sooner and hit the same failure.
+            private void scheduleRetry(long retryAfter) {
+                final long delay = mBackoff.onFailure(SystemClock.elapsedRealtime(), retryAfter);
+                logAboutMessageToMixpanel("Retrying in " + delay + " ms, after " + mBackoff.getFailureCount() + " failures in a row.");
+                removeMessages(FLUSH_QUEUE);
+                scheduleFlush(delay);
+            }
+
+            // Scheduled flushes, unlike those the app asks for, go through the FlushPolicy
+            private void scheduleFlush(long delay) {
+                sendMessageDelayed(obtainMessage(FLUSH_QUEUE, SCHEDULED_FLUSH, 0), delay);
+            }
+
+            // Asks the FlushPolicy whether a flush can go now, and keeps track of how long it's been put off.
+            private boolean allowFlush(FlushPolicy.Trigger trigger) {
+                final long now = SystemClock.elapsedRealtime();
+                final long deferred = mFlushDeferredSince < 0 ? 0 : now - mFlushDeferredSince;
+                boolean allow;
+                try {
+                    allow = mFlushPolicy.shouldFlush(trigger, deferred, mDeviceState);
+                } catch (final RuntimeException e) {
+                    Log.e(LOGTAG, "FlushPolicy threw an exception, flushing anyway", e);
+                    allow = true;
+                }
+
+                if (allow) {
+                    mFlushDeferredSince = -1;
+                } else {
+                    if (mFlushDeferredSince < 0) {
+                        mFlushDeferredSince = now;
+                    }
+                    logAboutMessageToMixpanel("Flush policy deferred a " + trigger + " flush, flushes have waited " + deferred + " ms");
+                }
+                return allow;
+            }
+
+            // While flushes are deferred the queue stays past the bulk limit, so every record written would
+            // ask the FlushPolicy again, and the policy may ask the system about the battery each time.
+            // Instead, BULK_LIMIT flushes are only offered to the policy once per BULK_FLUSH_CHECK_INTERVAL.
+            private boolean allowBulkFlush() {
+                final long now = SystemClock.elapsedRealtime();
+                if (mFlushDeferredSince >= 0 && now - mLastBulkFlushCheck < BULK_FLUSH_CHECK_INTERVAL) {
+                    return false;
+                }
+                mLastBulkFlushCheck = now;
+                return allowFlush(FlushPolicy.Trigger.BULK_LIMIT);
+            }
+
+            // After some other request of ours the radio is awake, and after a connectivity change we may be on
+            // a better network, so either is a good time to ask again about a flush the FlushPolicy held back.
+            private void offerDeferredFlush(FlushPolicy.Trigger trigger) {
+                if (mFlushDeferredSince >= 0 && allowFlush(trigger)) {
+                    logAboutMessageToMixpanel("Flushing deferred records after " + trigger);
+                    updateFlushFrequency();
+                    beginFlushCycle();
+                    sendAllData(mDbAdapter);
+                }
+            }
+
+            // The number of records in a full batch
+            private int getBatchSize() {
+                return null == mBatchSizer ? mConfig.getFlushBatchSize() : mBatchSizer.getBatchSize();
+            }
+
+            // Asks the server to explain what it thought of the request in its response
+            private String withVerbose(String url) {
+                return url + (url.indexOf('?') < 0 ? "?" : "&") + "verbose=1";
+            }
+
+            // A refused batch is split in half and each half sent on its own, until every record the
+            // server won't take is alone in its batch. Those are set aside as dead letters, so that
+            // one bad record can't hold up the rest of the queue behind it. rawMessage is null for streamed batches.
+            private void isolateRejectedRecords(RecordStore dbAdapter, MPDbAdapter.Table table, String lastId,
+                                                int batchSize, String rawMessage, int status) {
+                if (batchSize > 1) {
+                    logAboutMessageToMixpanel("Server refused a batch of " + batchSize + " with status " + status +
+                            ", retrying in smaller batches.");
+                    mRejectedBatchLimits.put(table, batchSize / 2);
+                } else {
+                    Log.w(LOGTAG, "Server refused a record with status " + status + ", it will not be sent again.");
+                    if (null != rawMessage) {
+                        logAboutMessageToMixpanel("Refused record was " + rawMessage);
+                    }
+                    dbAdapter.deadLetter(lastId, table, status);
                 }
             }
 
@@ -537,15 +1078,37 @@ import java.util.Map;
                         sendProperties.put(key, eventProperties.get(key));
                     }
                 }
+                if (! sendProperties.has("$insert_id")) {
+                    sendProperties.put("$insert_id", generateInsertId());
+                }
                 eventObj.put("event", eventDescription.getEventName());
                 eventObj.put("properties", sendProperties);
                 return eventObj;
             }
 
-            private MPDbAdapter mDbAdapter;
+            // 64 random bits as 16 hex digits. Short, but plenty to tell one device's events apart.
+            private String generateInsertId() {
+                final String hex = Long.toHexString(mInsertIdRandom.nextLong());
+                return "0000000000000000".substring(hex.length()) + hex;
+            }
+
+            private RecordStore mDbAdapter;
             private long mFlushInterval; // XXX remove when associated deprecated APIs are removed
             private boolean mDisableFallback; // XXX remove when associated deprecated APIs are removed
+            private long mFlushCycleStartTime;
+            private final LinkedList<MemoryRecord> mMemoryRecords = new LinkedList<MemoryRecord>();
+            private final SecureRandom mInsertIdRandom = new SecureRandom();
+            private final Map<MPDbAdapter.Table, Integer> mRejectedBatchLimits =
+                    new EnumMap<MPDbAdapter.Table, Integer>(MPDbAdapter.Table.class);
+            private long mFlushCycleBytes;
             private final DecideChecker mDecideChecker;
+            private final EndpointHealth mEndpointHealth;
+            private final BatchSizer mBatchSizer; // Null unless AdaptiveBatchSize is on
+            private final FlushPolicy mFlushPolicy;
+            private final FlushPolicy.DeviceState mDeviceState;
+            private long mFlushDeferredSince = -1; // Negative unless the FlushPolicy is holding flushes back
+            private long mLastBulkFlushCheck;
+            private final Backoff mBackoff = new Backoff(RETRY_BASE_DELAY, RETRY_MAX_DELAY, new Random());
         }// AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -566,6 +1129,7 @@ import java.util.Map;
         }
 
         private final Object mHandlerLock = new Object();
+        private final LinkedList<Message> mPendingRecords = new LinkedList<Message>();
         private Handler mHandler;
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
@@ -579,6 +1143,8 @@ import java.util.Map;
     private final Worker mWorker;
     private final Context mContext;
     private final MPConfig mConfig;
+    private final ConnectivityMonitor.Listener mConnectivityListener;
+    private Transport mTransport;
 
     // Messages for our thread
     private static int ENQUEUE_PEOPLE = 0; // submit events and people data
@@ -587,6 +1153,31 @@ import java.util.Map;
     private static int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
     private static int REGISTER_FOR_GCM = 13; // Register for GCM using Google Play Services
+    private static int CLOSE_DATABASE = 14; // Release the database connection after idle time or on memory pressure
+    private static int WRITE_PENDING_RECORDS = 15; // Write queued ENQUEUE_EVENTS and ENQUEUE_PEOPLE records to the DB as a group
+    private static int MIGRATE_LEGACY_ROWS = 16; // Move a chunk of rows left behind by a database upgrade into the current tables
+    private static int DRAIN_QUEUE = 17; // Send the next batch of a backlog, as part of the current flush
+    private static int SALVAGE_QUARANTINED_ROWS = 18; // Copy a chunk of rows out of a damaged database that was set aside
+    private static int PERSIST_MEMORY_RECORDS = 19; // Write records held in memory, with DURABILITY_MEMORY, to storage
+    private static int FLUSH_PRIORITY_EVENTS = 20; // Send queued priority events ahead of the next scheduled flush
+    private static int CONNECTIVITY_CHANGED = 21; // The network changed, so a deferred flush may be able to go
+
+    // arg1 of FLUSH_QUEUE messages the worker schedules for itself, as opposed to those the app asks for
+    private static final int SCHEDULED_FLUSH = 1;
+
+    // Rows moved per table for each MIGRATE_LEGACY_ROWS message
+    private static final int LEGACY_MIGRATION_CHUNK_SIZE = 200;
+
+    // Rows copied per table for each SALVAGE_QUARANTINED_ROWS message
+    private static final int SALVAGE_CHUNK_SIZE = 200;
+
+    // Milliseconds of inactivity before the worker releases its database connection
+    private static final long DATABASE_IDLE_TIMEOUT = 30 * 1000;
+
+    // Limits for the random wait before retrying a failed flush, which doubles with each failure in a row
+    private static final long RETRY_BASE_DELAY = 10 * 1000;
+    private static final long RETRY_MAX_DELAY = 10 * 60 * 1000;
+    private static final long BULK_FLUSH_CHECK_INTERVAL = 60 * 1000;
 
     private static int SET_FLUSH_INTERVAL = 4; // XXX REMOVE when associated deprecated APIs are removed
     private static int SET_DISABLE_FALLBACK = 10; // XXX REMOVE when associated deprecated APIs are removed
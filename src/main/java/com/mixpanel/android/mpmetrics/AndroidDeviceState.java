@@ -0,0 +1,45 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+/**
+ * FlushPolicy.DeviceState, read from the system services of a real device.
+ * Network state comes from the ConnectivityMonitor's snapshot.
+ */
+/* package */ class AndroidDeviceState implements FlushPolicy.DeviceState {
+
+    public AndroidDeviceState(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityMonitor = ConnectivityMonitor.getInstance(context);
+    }
+
+    @Override
+    public boolean isOnline() {
+        return mConnectivityMonitor.getSnapshot().isOnline();
+    }
+
+    @Override
+    public boolean isOnUnmeteredNetwork() {
+        return mConnectivityMonitor.getSnapshot().isOnUnmeteredNetwork();
+    }
+
+    @Override
+    public boolean isCharging() {
+        // ACTION_BATTERY_CHANGED is sticky, so we can read the last one without a receiver
+        final Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return null != battery && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @Override
+    public long getMillisSinceNetworkActivity() {
+        final long lastRequest = ServerMessage.getLastRequestTime();
+        return lastRequest < 0 ? -1 : SystemClock.elapsedRealtime() - lastRequest;
+    }
+
+    private final Context mContext;
+    private final ConnectivityMonitor mConnectivityMonitor;
+}
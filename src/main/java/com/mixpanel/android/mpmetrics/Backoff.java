@@ -0,0 +1,73 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before trying again after a flush fails.
+ *
+ * <p>Waits grow exponentially with each failure in a row, up to a limit, and each wait is chosen
+ * at random between zero and the current limit ("full jitter"), so that many devices that failed
+ * together don't all come back at once. If the server said how long to wait, with a Retry-After
+ * header, we wait at least that long.
+ *
+ * <p>Failures while we're already waiting, for example from a flush the app asked for, or from the
+ * other tables in the same flush, don't make the wait any longer than the server asked for.
+ *
+ * <p>Times are in milliseconds, from any clock that doesn't go backwards. Not thread safe.
+ */
+/* package */ class Backoff {
+
+    public Backoff(long baseDelay, long maxDelay, Random random) {
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRandom = random;
+        mFailures = 0;
+        mRetryTime = 0;
+    }
+
+    /**
+     * @param retryAfter how long the server asked us to wait, or -1 if it didn't say
+     * @return how long to wait before trying again
+     */
+    public long onFailure(long now, long retryAfter) {
+        if (! isWaiting(now)) {
+            // Shifting past 30 places would overflow long before it matters
+            final long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(mFailures, 30));
+            mRetryTime = now + (long) (mRandom.nextDouble() * ceiling);
+            mFailures++;
+        }
+        if (retryAfter > 0) {
+            mRetryTime = Math.max(mRetryTime, now + Math.min(retryAfter, MAX_RETRY_AFTER));
+        }
+        return mRetryTime - now;
+    }
+
+    public void onSuccess() {
+        mFailures = 0;
+        mRetryTime = 0;
+    }
+
+    /**
+     * @return true if we're waiting out a failure, and shouldn't try again before the retry time.
+     */
+    public boolean isWaiting(long now) {
+        return now < mRetryTime;
+    }
+
+    public int getFailureCount() {
+        return mFailures;
+    }
+
+    public long getRetryTime() {
+        return mRetryTime;
+    }
+
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom;
+    private int mFailures;
+    private long mRetryTime;
+
+    // A server asking for more than this is probably confused
+    private static final long MAX_RETRY_AFTER = 60 * 60 * 1000; // one hour
+}
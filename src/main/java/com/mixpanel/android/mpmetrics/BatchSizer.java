@@ -0,0 +1,105 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Log;
+
+/**
+ * Chooses how many records to send in each batch, for AdaptiveBatchSize, from how long recent
+ * uploads took.
+ *
+ * <p>Each successful upload updates a running average of throughput, in bytes per second, and
+ * of record size. The next batch is sized to take about TARGET_REQUEST_TIME to upload at that
+ * throughput, so fast connections send big batches and slow ones send small batches that finish
+ * well inside the read timeout. Batches at most double or halve from one upload to the next.
+ * A timeout or running out of memory halves the batch straight away.
+ *
+ * <p>Not thread safe.
+ */
+/* package */ class BatchSizer {
+
+    public BatchSizer(int initialSize, int minSize, int maxSize) {
+        mMinSize = Math.max(1, minSize);
+        mMaxSize = Math.max(mMinSize, maxSize);
+        mBatchSize = clamp(initialSize);
+        mThroughput = -1;
+        mBytesPerRecord = -1;
+    }
+
+    /**
+     * @return the number of records to put in the next batch
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Called when a batch was uploaded.
+     *
+     * @param records the number of records in the batch
+     * @param bytes the length of the batch
+     * @param elapsedMillis how long the request took, from start to end
+     */
+    public void onSuccess(int records, long bytes, long elapsedMillis) {
+        if (records <= 0 || bytes <= 0) {
+            return;
+        }
+
+        final double throughput = bytes * 1000.0 / Math.max(1, elapsedMillis);
+        final double bytesPerRecord = (double) bytes / records;
+        mThroughput = mThroughput < 0 ? throughput : average(mThroughput, throughput);
+        mBytesPerRecord = mBytesPerRecord < 0 ? bytesPerRecord : average(mBytesPerRecord, bytesPerRecord);
+
+        final double target = mThroughput * TARGET_REQUEST_TIME / 1000 / mBytesPerRecord;
+        final int oldSize = mBatchSize;
+        int newSize = (int) Math.min(Math.max(target, oldSize / 2.0), oldSize * 2.0);
+
+        // A batch that wasn't full tells us nothing about how bigger ones would go
+        if (newSize > oldSize && records < oldSize) {
+            newSize = oldSize;
+        }
+        mBatchSize = clamp(newSize);
+
+        if (MPConfig.DEBUG) {
+            Log.d(LOGTAG, "Uploaded " + records + " records, " + bytes + " bytes in " + elapsedMillis + " ms. " +
+                    "Average throughput is " + (long) mThroughput + " bytes per second, batch size " +
+                    oldSize + " -> " + mBatchSize);
+        }
+    }
+
+    /**
+     * Called when an upload timed out.
+     */
+    public void onTimeout() {
+        shrink("timed out");
+    }
+
+    /**
+     * Called when we ran out of memory preparing or sending a batch.
+     */
+    public void onOutOfMemory() {
+        shrink("ran out of memory");
+    }
+
+    private void shrink(String reason) {
+        final int oldSize = mBatchSize;
+        mBatchSize = clamp(oldSize / 2);
+        if (MPConfig.DEBUG) Log.d(LOGTAG, "Upload " + reason + ", batch size " + oldSize + " -> " + mBatchSize);
+    }
+
+    private int clamp(int size) {
+        return Math.min(mMaxSize, Math.max(mMinSize, size));
+    }
+
+    private static double average(double average, double sample) {
+        return (1 - SMOOTHING) * average + SMOOTHING * sample;
+    }
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private int mBatchSize;
+    private double mThroughput; // Negative until the first upload
+    private double mBytesPerRecord;
+
+    private static final double SMOOTHING = 0.3;
+    private static final long TARGET_REQUEST_TIME = 5 * 1000; // Half the read timeout
+    private static final String LOGTAG = "MixpanelAPI";
+}
@@ -0,0 +1,250 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Keeps a snapshot of the device's network and radio state, so that the state can be read for
+ * every flush and every event without asking the system services (each question is a call to
+ * another process) every time.
+ *
+ * <p>The snapshot is refreshed, at most once, the first time it's read after a CONNECTIVITY_ACTION
+ * or Bluetooth state broadcast. The carrier name is refreshed along with connectivity, which is
+ * when it usually changes. If the broadcast receiver can't be registered, every read asks the
+ * system services, as before.
+ *
+ * <p>Safe to use from any thread.
+ */
+/* package */ class ConnectivityMonitor {
+
+    /**
+     * Called, on the main thread, when connectivity changes.
+     */
+    public interface Listener {
+        public void onConnectivityChanged();
+    }
+
+    /**
+     * The state of the device's connections at one moment. Values that we don't have
+     * permission to read are null.
+     */
+    public static class Snapshot {
+        public Snapshot(boolean online, Boolean wifi, boolean unmetered, String networkOperator, Boolean bluetoothEnabled) {
+            mOnline = online;
+            mWifi = wifi;
+            mUnmetered = unmetered;
+            mNetworkOperator = networkOperator;
+            mBluetoothEnabled = bluetoothEnabled;
+        }
+
+        // True if we're connected or connecting, or can't tell
+        public boolean isOnline() {
+            return mOnline;
+        }
+
+        public Boolean isWifiConnected() {
+            return mWifi;
+        }
+
+        public boolean isOnUnmeteredNetwork() {
+            return mUnmetered;
+        }
+
+        public String getNetworkOperator() {
+            return mNetworkOperator;
+        }
+
+        public Boolean isBluetoothEnabled() {
+            return mBluetoothEnabled;
+        }
+
+        private final boolean mOnline;
+        private final Boolean mWifi;
+        private final boolean mUnmetered;
+        private final String mNetworkOperator;
+        private final Boolean mBluetoothEnabled;
+    }
+
+    public static ConnectivityMonitor getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new ConnectivityMonitor(context.getApplicationContext());
+                sInstance.startListening();
+            }
+        }
+        return sInstance;
+    }
+
+    /* package */ ConnectivityMonitor(Context context) {
+        mContext = context;
+        mCanReadNetworkState = PackageManager.PERMISSION_GRANTED ==
+                context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE);
+        mListeners = new ArrayList<Listener>();
+        mListening = false;
+        mReceiver = null;
+        mStale = true;
+        mSnapshot = null;
+    }
+
+    /**
+     * @return the current state, read from the system services only if it has changed since the last call
+     */
+    public synchronized Snapshot getSnapshot() {
+        if (mStale || ! mListening || null == mSnapshot) {
+            mStale = false; // Cleared first, so a broadcast during the reads marks the new snapshot stale
+            mSnapshot = readSnapshot();
+            if (MPConfig.DEBUG) {
+                Log.d(LOGTAG, "Connectivity is now online: " + mSnapshot.isOnline() + ", wifi: " + mSnapshot.isWifiConnected() +
+                        ", unmetered: " + mSnapshot.isOnUnmeteredNetwork() + ", carrier: " + mSnapshot.getNetworkOperator() +
+                        ", bluetooth: " + mSnapshot.isBluetoothEnabled());
+            }
+        }
+        return mSnapshot;
+    }
+
+    public boolean isOnline() {
+        return getSnapshot().isOnline();
+    }
+
+    public synchronized void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    // Marks the snapshot out of date, to be read again when it's next asked for
+    /* package */ void onStateChanged(boolean connectivityChanged) {
+        final List<Listener> listeners;
+        synchronized (this) {
+            mStale = true;
+            listeners = new ArrayList<Listener>(mListeners);
+        }
+
+        if (connectivityChanged) {
+            for (final Listener listener : listeners) {
+                listener.onConnectivityChanged();
+            }
+        }
+    }
+
+    /* package */ void startListening() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onStateChanged(ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction()));
+            }
+        };
+        try {
+            mContext.registerReceiver(receiver, filter);
+            synchronized (this) {
+                mReceiver = receiver;
+                mListening = true;
+            }
+        } catch (final RuntimeException e) {
+            Log.w(LOGTAG, "Can't listen for connectivity changes, network state will be read every time it's needed", e);
+        }
+    }
+
+    // Unregisters the receiver registered by startListening. After this, every read asks the system services.
+    /* package */ void stopListening() {
+        final BroadcastReceiver receiver;
+        synchronized (this) {
+            receiver = mReceiver;
+            mReceiver = null;
+            mListening = false;
+        }
+
+        if (null != receiver) {
+            try {
+                mContext.unregisterReceiver(receiver);
+            } catch (final IllegalArgumentException e) {
+                Log.w(LOGTAG, "Connectivity receiver was already unregistered", e);
+            }
+        }
+    }
+
+    private Snapshot readSnapshot() {
+        boolean online = true; // Without permission to look, assume we're online
+        Boolean wifi = null;
+        boolean unmetered = false;
+        if (mCanReadNetworkState) {
+            try {
+                final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+                final NetworkInfo netInfo = cm.getActiveNetworkInfo();
+                online = null != netInfo && netInfo.isConnectedOrConnecting();
+
+                final NetworkInfo wifiInfo = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+                wifi = null != wifiInfo && wifiInfo.isConnected();
+
+                if (null != netInfo && netInfo.isConnected()) {
+                    if (Build.VERSION.SDK_INT >= 16) {
+                        unmetered = ! isActiveNetworkMetered(cm);
+                    } else {
+                        final int type = netInfo.getType();
+                        unmetered = type == ConnectivityManager.TYPE_WIFI || type == TYPE_ETHERNET;
+                    }
+                }
+            } catch (final SecurityException e) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Don't have permission to check connectivity, assuming online");
+            }
+        }
+
+        String networkOperator = null;
+        final TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        if (null != telephonyManager) {
+            networkOperator = telephonyManager.getNetworkOperatorName();
+        }
+
+        Boolean bluetoothEnabled = null;
+        try {
+            final BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            if (null != bluetoothAdapter) {
+                bluetoothEnabled = bluetoothAdapter.isEnabled();
+            }
+        } catch (final SecurityException e) {
+            // do nothing since we don't have permissions
+        }
+
+        return new Snapshot(online, wifi, unmetered, networkOperator, bluetoothEnabled);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(ConnectivityManager cm) {
+        return cm.isActiveNetworkMetered();
+    }
+
+    private final Context mContext;
+    private final boolean mCanReadNetworkState;
+    private final List<Listener> mListeners;
+    private boolean mListening;
+    private BroadcastReceiver mReceiver;
+    private volatile boolean mStale;
+    private Snapshot mSnapshot;
+
+    // ConnectivityManager.TYPE_ETHERNET, which is only defined from API 13. Older
+    // platforms never report it, so comparing against it there is harmless.
+    private static final int TYPE_ETHERNET = 9;
+
+    private static ConnectivityMonitor sInstance;
+    private static final Object sInstanceLock = new Object();
+    private static final String LOGTAG = "MixpanelAPI";
+}
@@ -0,0 +1,36 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * The FlushPolicy used unless the app names its own.
+ *
+ * <p>Unless DeferBulkFlushes is set, every flush goes right away, as it always has. With it set,
+ * flushes wait for wifi, for the charger, or for the radio to be awake from another request
+ * of ours, but never longer than MaxFlushDeferral.
+ */
+/* package */ class DefaultFlushPolicy implements FlushPolicy {
+
+    public DefaultFlushPolicy(boolean deferFlushes, long maxDeferral) {
+        mDeferFlushes = deferFlushes;
+        mMaxDeferral = maxDeferral;
+    }
+
+    @Override
+    public boolean shouldFlush(Trigger trigger, long deferredMillis, DeviceState device) {
+        if (! mDeferFlushes || deferredMillis >= mMaxDeferral) {
+            return true;
+        }
+
+        if (device.isOnUnmeteredNetwork() || device.isCharging()) {
+            return true;
+        }
+
+        final long sinceActivity = device.getMillisSinceNetworkActivity();
+        return sinceActivity >= 0 && sinceActivity < RADIO_AWAKE_TIME;
+    }
+
+    private final boolean mDeferFlushes;
+    private final long mMaxDeferral;
+
+    // Cell radios stay at full power for several seconds after the last packet
+    private static final long RADIO_AWAKE_TIME = 10 * 1000;
+}
@@ -0,0 +1,227 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps track of how well each Mixpanel endpoint has been answering, so that an endpoint that
+ * can't be reached isn't tried first, at the cost of a connection timeout, for every request.
+ *
+ * <p>Each endpoint has a rolling success rate. When the rate falls below one half (three failures
+ * in a row, starting from health) the endpoint's circuit opens, and the endpoint is skipped until
+ * a cool down has passed. After that the circuit is half open: the endpoint is tried again in its
+ * usual place, and the circuit closes if it answers or opens again, for twice as long, if it doesn't.
+ * While the primary endpoint's circuit is open, requests go straight to the fallback. The last
+ * endpoint left is never skipped, even with its circuit open, so that a flush always has somewhere
+ * to go and the caller's backoff alone decides how often it's retried.
+ *
+ * <p>Failures seen on one network say little about the next, so the caller should {@link #reset()}
+ * when connectivity changes.
+ *
+ * <p>Endpoints are identified by their URLs without any query string, so every decide request
+ * shares one record. Health is saved in SharedPreferences, so it's kept across process restarts.
+ *
+ * <p>Safe to use from any thread.
+ */
+// In order to use writeEdits, we have to suppress the linter's check for commit()/apply()
+@SuppressLint("CommitPrefEdits")
+/* package */ class EndpointHealth {
+
+    public static EndpointHealth getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new EndpointHealth(appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+            }
+        }
+        return sInstance;
+    }
+
+    /* package */ EndpointHealth(SharedPreferences preferences) {
+        mPreferences = preferences;
+        mStates = new HashMap<String, State>();
+    }
+
+    /**
+     * @return the urls that are worth trying, in the order given, leaving out those with open circuits.
+     *     If every circuit is open, just the url whose circuit closes soonest.
+     */
+    public String[] order(String[] urls) {
+        return order(urls, System.currentTimeMillis());
+    }
+
+    public void recordSuccess(String url) {
+        recordSuccess(url, System.currentTimeMillis());
+    }
+
+    public void recordFailure(String url) {
+        recordFailure(url, System.currentTimeMillis());
+    }
+
+    /* package */ synchronized String[] order(String[] urls, long now) {
+        final List<String> available = new ArrayList<String>(urls.length);
+        String soonest = null;
+        for (final String url : urls) {
+            final State state = getState(url);
+            if (! state.isOpen(now)) {
+                available.add(url);
+            } else {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Skipping " + url + ", it has been failing");
+                if (null == soonest || state.openUntil < getState(soonest).openUntil) {
+                    soonest = url;
+                }
+            }
+        }
+
+        // Leaving nothing to try would stall the queue for the whole cool down, even for flushes the app asks for
+        if (available.isEmpty() && null != soonest) {
+            available.add(soonest);
+        }
+        return available.toArray(new String[available.size()]);
+    }
+
+    /* package */ synchronized void recordSuccess(String url, long now) {
+        final State state = getState(url);
+        final boolean closing = 0 != state.openUntil;
+        if (state.successRate == 1.0 && ! closing) {
+            return; // Nothing has changed, don't write to disk
+        }
+
+        if (closing) {
+            if (MPConfig.DEBUG) Log.d(LOGTAG, "Endpoint " + url + " is answering again");
+            state.successRate = 1.0;
+            state.openUntil = 0;
+            state.coolDown = 0;
+        } else {
+            state.successRate = (1 - SMOOTHING) * state.successRate + SMOOTHING;
+        }
+        saveState(url, state);
+    }
+
+    /* package */ synchronized void recordFailure(String url, long now) {
+        final State state = getState(url);
+        state.lastFailure = now;
+        state.successRate = (1 - SMOOTHING) * state.successRate;
+
+        final boolean trial = 0 != state.openUntil;
+        if (trial || state.successRate < TRIP_RATE) {
+            state.coolDown = trial ? Math.min(state.coolDown * 2, MAX_COOL_DOWN) : MIN_COOL_DOWN;
+            state.openUntil = now + state.coolDown;
+            Log.w(LOGTAG, "Endpoint " + url + " is failing, not trying it again for " + (state.coolDown / 1000) + " seconds");
+        }
+        saveState(url, state);
+    }
+
+    /* package */ synchronized double getSuccessRate(String url) {
+        return getState(url).successRate;
+    }
+
+    /* package */ synchronized long getLastFailure(String url) {
+        return getState(url).lastFailure;
+    }
+
+    // Forgets everything we know about every endpoint
+    public synchronized void reset() {
+        mStates.clear();
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        editor.clear();
+        writeEdits(editor);
+    }
+
+    private State getState(String url) {
+        final String key = endpointKey(url);
+        State state = mStates.get(key);
+        if (null == state) {
+            state = new State();
+            final String stored = mPreferences.getString(key, null);
+            if (null != stored) {
+                try {
+                    final JSONObject json = new JSONObject(stored);
+                    state.successRate = json.getDouble("success_rate");
+                    state.lastFailure = json.getLong("last_failure");
+                    state.openUntil = json.getLong("open_until");
+                    state.coolDown = json.getLong("cool_down");
+                } catch (final JSONException e) {
+                    Log.e(LOGTAG, "Stored health for " + key + " was unreadable, starting over");
+                    state = new State();
+                }
+            }
+            mStates.put(key, state);
+        }
+        return state;
+    }
+
+    private void saveState(String url, State state) {
+        try {
+            final JSONObject json = new JSONObject();
+            json.put("success_rate", state.successRate);
+            json.put("last_failure", state.lastFailure);
+            json.put("open_until", state.openUntil);
+            json.put("cool_down", state.coolDown);
+            final SharedPreferences.Editor editor = mPreferences.edit();
+            editor.putString(endpointKey(url), json.toString());
+            writeEdits(editor);
+        } catch (final JSONException e) {
+            Log.e(LOGTAG, "Can't save health for " + url, e);
+        }
+    }
+
+    private static String endpointKey(String url) {
+        final int query = url.indexOf('?');
+        return query < 0 ? url : url.substring(0, query);
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void writeEdits(final SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= 9) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    private static class State {
+        public State() {
+            successRate = 1.0;
+            lastFailure = 0;
+            openUntil = 0;
+            coolDown = 0;
+        }
+
+        // A circuit that was opened longer ago than the longest cool down was opened
+        // under a different wall clock, so we give the endpoint another chance.
+        public boolean isOpen(long now) {
+            return now < openUntil && openUntil - now <= MAX_COOL_DOWN;
+        }
+
+        public double successRate;
+        public long lastFailure;
+        public long openUntil; // Zero while the circuit is closed
+        public long coolDown;
+    }
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, State> mStates;
+
+    private static EndpointHealth sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final double SMOOTHING = 0.25;
+    private static final double TRIP_RATE = 0.5;
+    private static final long MIN_COOL_DOWN = 60 * 1000; // one minute
+    private static final long MAX_COOL_DOWN = 30 * 60 * 1000; // thirty minutes
+    private static final String PREFERENCES_NAME = "com.mixpanel.android.mpmetrics.EndpointHealth";
+    private static final String LOGTAG = "MixpanelAPI";
+}
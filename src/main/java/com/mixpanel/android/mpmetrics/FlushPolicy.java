@@ -0,0 +1,70 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * Decides whether a flush should go now, or wait for a better moment.
+ *
+ * <p>Each time the network radio wakes up it stays powered for several seconds after the last
+ * byte is sent, so uploads cost the least battery when they happen on wifi, while charging, or
+ * while the radio is already awake for some other request. Flushes the app asks for, with
+ * {@link MixpanelAPI#flush()}, always go right away. Scheduled flushes, and flushes started
+ * because the queue reached com.mixpanel.android.MPConfig.BulkUploadLimit, ask the policy first.
+ * A deferred flush is offered again at the next flush interval, when connectivity changes, and
+ * straight after any other request the library makes, for example to check for surveys and notifications.
+ *
+ * <p>The library's default policy defers flushes only if com.mixpanel.android.MPConfig.DeferBulkFlushes
+ * is true. Apps can supply their own policy by naming its class in the
+ * com.mixpanel.android.MPConfig.FlushPolicyClass meta-data tag. The class must be public, with
+ * a public constructor that takes no arguments.
+ *
+ * <p>Policies are only called from the library's own background thread.
+ */
+public interface FlushPolicy {
+
+    /**
+     * Why a flush is being considered.
+     */
+    public enum Trigger {
+        /** The flush interval has passed, or a failed flush is being retried */
+        SCHEDULED,
+        /** The queue has reached BulkUploadLimit */
+        BULK_LIMIT,
+        /** The library has just made some other request, so the radio is awake */
+        PIGGYBACK,
+        /** The device has connected to, or moved between, networks */
+        CONNECTIVITY_CHANGED
+    }
+
+    /**
+     * @param trigger why the flush is being considered
+     * @param deferredMillis how long flushes have been put off, or 0 if this is the first time of asking
+     * @param device the state of the device right now
+     * @return true to flush now, false to wait
+     */
+    public boolean shouldFlush(Trigger trigger, long deferredMillis, DeviceState device);
+
+    /**
+     * What a policy can know about the device. Kept behind an interface so that
+     * policies can be tested without one.
+     */
+    public interface DeviceState {
+        /**
+         * @return true if there is a network connection
+         */
+        public boolean isOnline();
+
+        /**
+         * @return true if the connection is wifi or another network that isn't metered by the byte
+         */
+        public boolean isOnUnmeteredNetwork();
+
+        /**
+         * @return true if the device is plugged in
+         */
+        public boolean isCharging();
+
+        /**
+         * @return milliseconds since the library last made a request, or -1 if it hasn't made one
+         */
+        public long getMillisSinceNetworkActivity();
+    }
+}
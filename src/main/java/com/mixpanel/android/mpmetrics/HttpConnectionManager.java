@@ -0,0 +1,163 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.util.Log;
+
+/**
+ * Opens the connections used by ServerMessage, and keeps count of what they cost.
+ *
+ * <p>HttpURLConnection keeps a pool of idle keep-alive connections for each host, and reuses
+ * them for later requests as long as each response is read to the end and closed, and the
+ * connection is never disconnected. A pooled connection may have been closed by the server while
+ * it sat idle. The first read on a stale connection fails with an EOFException, the connection
+ * is dropped from the pool, and the request can be retried right away on a fresh one.
+ *
+ * <p>HTTPS connections are opened through a socket factory that counts TLS handshakes, so that
+ * handshakes can be compared with requests to see how often connections are being reused.
+ *
+ * <p>Safe to use from any thread.
+ */
+/* package */ class HttpConnectionManager {
+
+    public static HttpConnectionManager getInstance() {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new HttpConnectionManager();
+            }
+        }
+        return sInstance;
+    }
+
+    /* package */ HttpConnectionManager() {
+        mRequestCount = new AtomicInteger();
+        mHandshakeCount = new AtomicInteger();
+        mStaleConnectionCount = new AtomicInteger();
+        mSocketFactory = null;
+    }
+
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory());
+        }
+        mRequestCount.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * Called when a request failed because the pooled connection it was given had gone stale.
+     */
+    public void onStaleConnection() {
+        mStaleConnectionCount.incrementAndGet();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getHandshakeCount() {
+        return mHandshakeCount.get();
+    }
+
+    public int getStaleConnectionCount() {
+        return mStaleConnectionCount.get();
+    }
+
+    // Connections are only pooled together if they were opened with the same socket factory,
+    // so the same wrapper is used until the app changes the default factory.
+    private synchronized SSLSocketFactory getSocketFactory() {
+        final SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        if (null == mSocketFactory || mSocketFactory.getDelegate() != defaultFactory) {
+            mSocketFactory = new CountingSSLSocketFactory(defaultFactory, mHandshakeCount);
+        }
+        return mSocketFactory;
+    }
+
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+        public CountingSSLSocketFactory(SSLSocketFactory delegate, final AtomicInteger handshakeCount) {
+            mDelegate = delegate;
+            mListener = new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    final int count = handshakeCount.incrementAndGet();
+                    if (MPConfig.DEBUG) Log.d(LOGTAG, "TLS handshake " + count + " completed with " + event.getSocket().getInetAddress());
+                }
+            };
+        }
+
+        public SSLSocketFactory getDelegate() {
+            return mDelegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return countHandshakes(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return countHandshakes(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return countHandshakes(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return countHandshakes(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return countHandshakes(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return countHandshakes(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket countHandshakes(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(mListener);
+            }
+            return socket;
+        }
+
+        private final SSLSocketFactory mDelegate;
+        private final HandshakeCompletedListener mListener;
+    }
+
+    private final AtomicInteger mRequestCount;
+    private final AtomicInteger mHandshakeCount;
+    private final AtomicInteger mStaleConnectionCount;
+    private CountingSSLSocketFactory mSocketFactory;
+
+    private static HttpConnectionManager sInstance;
+    private static final Object sInstanceLock = new Object();
+    private static final String LOGTAG = "MixpanelAPI";
+}
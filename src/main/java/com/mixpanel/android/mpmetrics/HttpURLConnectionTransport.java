@@ -0,0 +1,123 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default Transport, built on HttpURLConnection.
+ */
+/* package */ class HttpURLConnectionTransport implements Transport {
+
+    public HttpURLConnectionTransport() {
+        mConnections = HttpConnectionManager.getInstance();
+    }
+
+    @Override
+    public Response execute(String endpointUrl, Body body) throws IOException {
+        // Connections are kept alive and pooled between requests (see HttpConnectionManager), and a
+        // pooled connection the server closed while it sat idle fails with an EOFException. The stale
+        // connection is dropped from the pool when that happens, so we just try again on a new one.
+        EOFException staleConnection = null;
+        for (int attempt = 0; attempt < 3; attempt++) {
+            InputStream in = null;
+            HttpURLConnection connection = null;
+            boolean reusable = false;
+
+            try {
+                final URL url = new URL(endpointUrl);
+                connection = mConnections.openConnection(url);
+                connection.setConnectTimeout(2000);
+                connection.setReadTimeout(10000);
+                if (null != body) {
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", body.getContentType());
+                    if (null != body.getContentEncoding()) {
+                        connection.setRequestProperty("Content-Encoding", body.getContentEncoding());
+                    }
+                    if (body.getContentLength() < 0) {
+                        connection.setChunkedStreamingMode(0);
+                    } else {
+                        connection.setFixedLengthStreamingMode((int)body.getContentLength());
+                    }
+                    // If writing the body fails, the stream is abandoned rather than closed,
+                    // since closing a chunked body would end it as if it were whole.
+                    final OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+                    body.writeTo(out);
+                    out.close();
+                }
+
+                // Reading the body to the end, even for errors, lets the connection go back in the pool
+                final int status = connection.getResponseCode();
+                in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                final byte[] response = null == in ? null : slurp(in);
+                if (null != in) {
+                    in.close();
+                    in = null;
+                }
+                reusable = true;
+
+                // The status line comes back as a field without a name, and is left out
+                final Map<String, String> headers = new HashMap<String, String>();
+                final Map<String, List<String>> fields = connection.getHeaderFields();
+                if (null != fields) {
+                    for (final Map.Entry<String, List<String>> field : fields.entrySet()) {
+                        final List<String> values = field.getValue();
+                        if (null != field.getKey() && null != values && ! values.isEmpty()) {
+                            headers.put(field.getKey(), values.get(values.size() - 1));
+                        }
+                    }
+                }
+
+                if (MPConfig.DEBUG) {
+                    Log.d(LOGTAG, "Mixpanel has made " + mConnections.getRequestCount() + " requests with " +
+                            mConnections.getHandshakeCount() + " TLS handshakes and found " +
+                            mConnections.getStaleConnectionCount() + " stale connections");
+                }
+                return new Response(status, response, headers);
+            } catch (final EOFException e) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Connection was closed while idle. Retrying on a new connection.");
+                mConnections.onStaleConnection();
+                staleConnection = e;
+            } finally {
+                if (null != in)
+                    try { in.close(); } catch (final IOException e) { ; }
+                // Disconnecting closes the socket, so it's only done when the connection can't be reused
+                if (null != connection && ! reusable)
+                    connection.disconnect();
+            }
+        }
+        throw staleConnection;
+    }
+
+    // Does not close input stream
+    private byte[] slurp(final InputStream inputStream)
+        throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        int nRead;
+        byte[] data = new byte[8192];
+
+        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+
+        buffer.flush();
+        return buffer.toByteArray();
+    }
+
+    private final HttpConnectionManager mConnections;
+
+    private static final String LOGTAG = "MixpanelAPI";
+}
@@ -1,5 +1,8 @@
 package com.mixpanel.android.mpmetrics;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -22,6 +25,14 @@ public class MPConfig {
     // we don't want to suck up all of the memory on the device.
     /* package */ static final int MAX_NOTIFICATION_CACHE_COUNT = 2;
 
+    // Default for com.mixpanel.android.MPConfig.GzipLevel. See getGzipLevel()
+    public static final int DEFAULT_GZIP_LEVEL = 6;
+
+    // Values for com.mixpanel.android.MPConfig.Durability. See getDurability()
+    public static final String DURABILITY_MEMORY = "memory";
+    public static final String DURABILITY_GROUP = "group";
+    public static final String DURABILITY_SYNC = "sync";
+
     // Instances are safe to store, since they're immutable and always the same.
     public static MPConfig getInstance(Context context) {
         synchronized (sInstanceLock) {
@@ -45,6 +56,31 @@ public class MPConfig {
         mBulkUploadLimit = metaData.getInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("com.mixpanel.android.MPConfig.FlushInterval", 60 * 1000); // one minute default
         mDataExpiration = metaData.getInt("com.mixpanel.android.MPConfig.DataExpiration",  1000 * 60 * 60 * 24 * 5); // 5 days default
+        mGroupCommitLimit = metaData.getInt("com.mixpanel.android.MPConfig.GroupCommitLimit", 50); // 50 records default
+        mCompressStoredRecords = metaData.getBoolean("com.mixpanel.android.MPConfig.CompressStoredRecords", false);
+        mFlushBatchSize = metaData.getInt("com.mixpanel.android.MPConfig.FlushBatchSize", 50); // 50 records default
+        mFlushBatchMaxBytes = metaData.getInt("com.mixpanel.android.MPConfig.FlushBatchMaxBytes", 512 * 1024); // 512 KB default
+        mFlushCycleTimeLimit = metaData.getInt("com.mixpanel.android.MPConfig.FlushCycleTimeLimit", 30 * 1000); // 30 seconds default
+        mFlushCycleByteLimit = metaData.getInt("com.mixpanel.android.MPConfig.FlushCycleByteLimit", 4 * 1024 * 1024); // 4 MB default
+        mUseSegmentLogStorage = metaData.getBoolean("com.mixpanel.android.MPConfig.UseSegmentLogStorage", false);
+        mDurability = readDurability(metaData.getString("com.mixpanel.android.MPConfig.Durability"));
+        mMemoryDurabilityEvents = readEventNames(metaData.getString("com.mixpanel.android.MPConfig.MemoryDurabilityEvents"));
+        mSyncDurabilityEvents = readEventNames(metaData.getString("com.mixpanel.android.MPConfig.SyncDurabilityEvents"));
+        mMemoryPersistInterval = metaData.getInt("com.mixpanel.android.MPConfig.MemoryPersistInterval", 10 * 1000); // 10 seconds default
+        mMemoryRecordLimit = metaData.getInt("com.mixpanel.android.MPConfig.MemoryRecordLimit", 1000); // 1000 records default
+        mPriorityEvents = readEventNames(metaData.getString("com.mixpanel.android.MPConfig.PriorityEvents"));
+        mPriorityFlushDelay = metaData.getInt("com.mixpanel.android.MPConfig.PriorityFlushDelay", 500); // half a second default
+        mUseJsonRequests = metaData.getBoolean("com.mixpanel.android.MPConfig.UseJsonRequests", false);
+        mStreamRequests = metaData.getBoolean("com.mixpanel.android.MPConfig.StreamRequests", false);
+        mGzipRequests = metaData.getBoolean("com.mixpanel.android.MPConfig.GzipRequests", false);
+        mGzipLevel = readGzipLevel(metaData.getInt("com.mixpanel.android.MPConfig.GzipLevel", DEFAULT_GZIP_LEVEL));
+        mTransportClass = metaData.getString("com.mixpanel.android.MPConfig.TransportClass");
+        mAdaptiveBatchSize = metaData.getBoolean("com.mixpanel.android.MPConfig.AdaptiveBatchSize", false);
+        mMinFlushBatchSize = metaData.getInt("com.mixpanel.android.MPConfig.MinFlushBatchSize", 10); // 10 records default
+        mMaxFlushBatchSize = metaData.getInt("com.mixpanel.android.MPConfig.MaxFlushBatchSize", 500); // 500 records default
+        mDeferBulkFlushes = metaData.getBoolean("com.mixpanel.android.MPConfig.DeferBulkFlushes", false);
+        mMaxFlushDeferral = metaData.getInt("com.mixpanel.android.MPConfig.MaxFlushDeferral", 15 * 60 * 1000); // 15 minutes default
+        mFlushPolicyClass = metaData.getString("com.mixpanel.android.MPConfig.FlushPolicyClass");
         mDisableFallback = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableFallback", true);
 
          // Disable if EITHER of these is present and false, otherwise enable
@@ -97,6 +133,31 @@ public class MPConfig {
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
+                "    GroupCommitLimit " + getGroupCommitLimit() + "\n" +
+                "    CompressStoredRecords " + getCompressStoredRecords() + "\n" +
+                "    FlushBatchSize " + getFlushBatchSize() + "\n" +
+                "    FlushBatchMaxBytes " + getFlushBatchMaxBytes() + "\n" +
+                "    FlushCycleTimeLimit " + getFlushCycleTimeLimit() + "\n" +
+                "    FlushCycleByteLimit " + getFlushCycleByteLimit() + "\n" +
+                "    UseSegmentLogStorage " + getUseSegmentLogStorage() + "\n" +
+                "    Durability " + getDurability() + "\n" +
+                "    MemoryDurabilityEvents " + mMemoryDurabilityEvents + "\n" +
+                "    SyncDurabilityEvents " + mSyncDurabilityEvents + "\n" +
+                "    MemoryPersistInterval " + getMemoryPersistInterval() + "\n" +
+                "    MemoryRecordLimit " + getMemoryRecordLimit() + "\n" +
+                "    PriorityEvents " + mPriorityEvents + "\n" +
+                "    PriorityFlushDelay " + getPriorityFlushDelay() + "\n" +
+                "    UseJsonRequests " + getUseJsonRequests() + "\n" +
+                "    StreamRequests " + getStreamRequests() + "\n" +
+                "    GzipRequests " + getGzipRequests() + "\n" +
+                "    GzipLevel " + getGzipLevel() + "\n" +
+                "    TransportClass " + getTransportClass() + "\n" +
+                "    AdaptiveBatchSize " + getAdaptiveBatchSize() + "\n" +
+                "    MinFlushBatchSize " + getMinFlushBatchSize() + "\n" +
+                "    MaxFlushBatchSize " + getMaxFlushBatchSize() + "\n" +
+                "    DeferBulkFlushes " + getDeferBulkFlushes() + "\n" +
+                "    MaxFlushDeferral " + getMaxFlushDeferral() + "\n" +
+                "    FlushPolicyClass " + getFlushPolicyClass() + "\n" +
                 "    DisableFallback " + getDisableFallback() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
                 "    TestMode " + getTestMode() + "\n" +
@@ -125,6 +186,157 @@ public class MPConfig {
         return mDataExpiration;
     }
 
+    // Max number of queued records written to the database in a single transaction.
+    public int getGroupCommitLimit() {
+        return mGroupCommitLimit;
+    }
+
+    // Store queued records deflated, trading some CPU for a smaller database and less disk I/O.
+    public boolean getCompressStoredRecords() {
+        return mCompressStoredRecords;
+    }
+
+    // Max number of records sent in a single request. Must be below the limit the service will accept.
+    public int getFlushBatchSize() {
+        return mFlushBatchSize;
+    }
+
+    // Max size in bytes of the records sent in a single request. A single record larger
+    // than this will still be sent, alone.
+    public int getFlushBatchMaxBytes() {
+        return mFlushBatchMaxBytes;
+    }
+
+    // After a successful batch, a flush keeps sending batches until the queue is empty or
+    // it has run for this many milliseconds. Set to 0 to send only one batch per flush.
+    public int getFlushCycleTimeLimit() {
+        return mFlushCycleTimeLimit;
+    }
+
+    // ...or until it has sent this many bytes. Set to 0 to send only one batch per flush.
+    public int getFlushCycleByteLimit() {
+        return mFlushCycleByteLimit;
+    }
+
+    // Queue records in memory-mapped log files rather than in SQLite. Records already queued
+    // in one kind of storage are not carried over when this setting changes.
+    public boolean getUseSegmentLogStorage() {
+        return mUseSegmentLogStorage;
+    }
+
+    // How hard to try to keep queued records through a crash, for records with no durability
+    // of their own from getDurability(String). Each level has its own window for loss:
+    //
+    // DURABILITY_SYNC - Each record is committed to storage by itself, as soon as the worker
+    //     thread gets to it. Only records the worker hasn't picked up yet can be lost.
+    // DURABILITY_GROUP (the default) - Records are committed together once the worker catches up,
+    //     up to GroupCommitLimit at a time. Records tracked since the last commit can be lost-
+    //     usually just a few milliseconds worth, or longer while the worker is busy.
+    // DURABILITY_MEMORY - Records are held in memory and written to storage every MemoryPersistInterval
+    //     milliseconds, when the app goes to the background or is low on memory, and before each flush.
+    //     Up to MemoryPersistInterval milliseconds of records can be lost, and if more than
+    //     MemoryRecordLimit records are waiting the oldest are dropped.
+    public String getDurability() {
+        return mDurability;
+    }
+
+    // The durability of events with the given name: DURABILITY_MEMORY if listed in the comma separated
+    // MemoryDurabilityEvents, DURABILITY_SYNC if listed in SyncDurabilityEvents, otherwise getDurability().
+    public String getDurability(String eventName) {
+        if (mSyncDurabilityEvents.contains(eventName)) {
+            return DURABILITY_SYNC;
+        } else if (mMemoryDurabilityEvents.contains(eventName)) {
+            return DURABILITY_MEMORY;
+        }
+        return getDurability();
+    }
+
+    // Max milliseconds records with DURABILITY_MEMORY are held before they're written to storage
+    public int getMemoryPersistInterval() {
+        return mMemoryPersistInterval;
+    }
+
+    // Max number of records with DURABILITY_MEMORY held at once. Past this, the oldest are dropped.
+    public int getMemoryRecordLimit() {
+        return mMemoryRecordLimit;
+    }
+
+    // True if events with the given name are listed in the comma separated PriorityEvents. Priority
+    // events are queued apart from other events, and sent PriorityFlushDelay milliseconds after
+    // they're tracked rather than with the next scheduled flush. They are never held in memory.
+    public boolean isPriorityEvent(String eventName) {
+        return mPriorityEvents.contains(eventName);
+    }
+
+    // Milliseconds to wait after a priority event is tracked before sending it, so that
+    // events tracked together can go in the same request.
+    public int getPriorityFlushDelay() {
+        return mPriorityFlushDelay;
+    }
+
+    // Send track and engage batches as application/json request bodies, rather than Base64
+    // in a url encoded form. Saves the copies and the third larger request that Base64 costs.
+    public boolean getUseJsonRequests() {
+        return mUseJsonRequests;
+    }
+
+    // Write track and engage batches into requests straight from storage, a record at a time,
+    // so that memory use doesn't grow with the size of the batch. Batches are sent as
+    // application/json in chunks, whatever UseJsonRequests says.
+    public boolean getStreamRequests() {
+        return mStreamRequests;
+    }
+
+    // Send track and engage requests with Content-Encoding: gzip. Batches are mostly repeated
+    // property names, so this usually cuts upload sizes by more than half.
+    public boolean getGzipRequests() {
+        return mGzipRequests;
+    }
+
+    // Compression level for GzipRequests, from 1 (fastest) to 9 (smallest).
+    public int getGzipLevel() {
+        return mGzipLevel;
+    }
+
+    // Fully qualified name of a Transport class to send requests with instead of HttpURLConnection,
+    // or null to use HttpURLConnection.
+    public String getTransportClass() {
+        return mTransportClass;
+    }
+
+    // Size track and engage batches to suit the connection, from how long recent uploads took,
+    // rather than always sending FlushBatchSize records. Batches still stop at FlushBatchMaxBytes.
+    public boolean getAdaptiveBatchSize() {
+        return mAdaptiveBatchSize;
+    }
+
+    // Smallest batch, in records, that AdaptiveBatchSize will shrink to.
+    public int getMinFlushBatchSize() {
+        return mMinFlushBatchSize;
+    }
+
+    // Largest batch, in records, that AdaptiveBatchSize will grow to.
+    public int getMaxFlushBatchSize() {
+        return mMaxFlushBatchSize;
+    }
+
+    // Hold scheduled and bulk limit flushes until the device is on wifi, charging, or the radio is
+    // already awake from another request, to save battery. Flushes the app asks for still go right away.
+    public boolean getDeferBulkFlushes() {
+        return mDeferBulkFlushes;
+    }
+
+    // Longest time in milliseconds DeferBulkFlushes will hold flushes back.
+    public int getMaxFlushDeferral() {
+        return mMaxFlushDeferral;
+    }
+
+    // Fully qualified name of a FlushPolicy class to decide when flushes go,
+    // or null to use DeferBulkFlushes and MaxFlushDeferral.
+    public String getFlushPolicyClass() {
+        return mFlushPolicyClass;
+    }
+
     public boolean getDisableFallback() {
         return mDisableFallback;
     }
@@ -170,6 +382,41 @@ public class MPConfig {
 
     ///////////////////////////////////////////////
 
+    private static String readDurability(String durability) {
+        if (null == durability) {
+            return DURABILITY_GROUP;
+        }
+
+        if (durability.equals(DURABILITY_MEMORY) || durability.equals(DURABILITY_GROUP) || durability.equals(DURABILITY_SYNC)) {
+            return durability;
+        }
+
+        Log.w(LOGTAG, "Unknown com.mixpanel.android.MPConfig.Durability \"" + durability + "\", using \"" + DURABILITY_GROUP + "\"");
+        return DURABILITY_GROUP;
+    }
+
+    private static int readGzipLevel(int level) {
+        if (level >= 1 && level <= 9) {
+            return level;
+        }
+
+        Log.w(LOGTAG, "com.mixpanel.android.MPConfig.GzipLevel must be from 1 to 9, using " + DEFAULT_GZIP_LEVEL);
+        return DEFAULT_GZIP_LEVEL;
+    }
+
+    private static Set<String> readEventNames(String eventNames) {
+        final Set<String> ret = new HashSet<String>();
+        if (null != eventNames) {
+            for (final String name : eventNames.split(",")) {
+                final String trimmed = name.trim();
+                if (trimmed.length() > 0) {
+                    ret.add(trimmed);
+                }
+            }
+        }
+        return ret;
+    }
+
     // Package access for testing only- do not call directly in library code
     /* package */ static MPConfig readConfig(Context appContext) {
         final String packageName = appContext.getPackageName();
@@ -188,6 +435,31 @@ public class MPConfig {
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
     private final int mDataExpiration;
+    private final int mGroupCommitLimit;
+    private final boolean mCompressStoredRecords;
+    private final int mFlushBatchSize;
+    private final int mFlushBatchMaxBytes;
+    private final int mFlushCycleTimeLimit;
+    private final int mFlushCycleByteLimit;
+    private final boolean mUseSegmentLogStorage;
+    private final String mDurability;
+    private final Set<String> mMemoryDurabilityEvents;
+    private final Set<String> mSyncDurabilityEvents;
+    private final int mMemoryPersistInterval;
+    private final int mMemoryRecordLimit;
+    private final Set<String> mPriorityEvents;
+    private final int mPriorityFlushDelay;
+    private final boolean mUseJsonRequests;
+    private final boolean mStreamRequests;
+    private final boolean mGzipRequests;
+    private final int mGzipLevel;
+    private final String mTransportClass;
+    private final boolean mAdaptiveBatchSize;
+    private final int mMinFlushBatchSize;
+    private final int mMaxFlushBatchSize;
+    private final boolean mDeferBulkFlushes;
+    private final int mMaxFlushDeferral;
+    private final String mFlushPolicyClass;
     private final boolean mDisableFallback;
     private final boolean mTestMode;
     private final String mEventsEndpoint;
@@ -1,32 +1,91 @@
 package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.mixpanel.android.util.StringUtils;
+
 /**
  * SQLite database adapter for MixpanelAPI.
  *
  * <p>Not thread-safe. Instances of this class should only be used
  * by a single thread.
  *
+ * <p>The adapter holds a single database connection open between calls,
+ * along with precompiled statements for its most frequent operations.
+ * Callers should call {@link #close()} when the adapter is idle or
+ * the system is low on memory.
+ *
+ * <p>Row counts for each table are counted once when first needed and then kept
+ * up to date in memory, so callers can check queue depth without a query.
+ *
+ * <p>If com.mixpanel.android.MPConfig.CompressStoredRecords is set, new rows are
+ * stored deflated with a RecordCompressor. Each row records its own encoding, so
+ * the setting can be turned on or off without disturbing rows already queued.
+ *
+ * <p>Upgrading the database never throws queued rows away. Schema changes are applied
+ * in place, one version at a time. Databases too old to upgrade in place have their
+ * tables set aside, and {@link #migrateLegacyRows(int)} carries those rows into the
+ * new tables a chunk at a time.
+ *
+ * <p>Each table is kept as a series of partitions, one SQLite table per day, named for the
+ * table and the day it was started (events_16450, for example). A new partition is only
+ * started after every existing one, and its _ids carry on from theirs, so rows are in
+ * _id order across partitions and reads go through them in turn. Removing rows after a send,
+ * or expiring them by time, drops each partition that is covered in full, so the usual
+ * cleanup is a DROP TABLE rather than a DELETE over the whole queue. Only the newest
+ * partition, which new rows still go to, and a partition partly covered are DELETEd from.
+ * Tables from before partitioning are read as the oldest partition until they're dropped.
+ *
+ * <p>A failed write doesn't cost the rest of the queue. Writes that find the database
+ * locked are retried after a short wait, and writes that find the disk full are dropped.
+ * A database that reports corruption, or fails an integrity check after any other error,
+ * is set aside, and {@link #salvageQuarantinedRows(int)} copies whatever rows can still
+ * be read from it into a fresh database.
+ *
+ * <p>Events carry an insert id in their $insert_id property, which is stored in
+ * a column with a unique index in each partition, and checked against the older
+ * partitions before insert. A record with the same insert id as one already
+ * queued is ignored, so enqueueing the same event twice only sends it once.
+ *
+ * <p>Records the server refuses are moved by {@link #deadLetter(String, Table, int)} into a
+ * separate dead_letters table, along with the table they came from and a reason code. Only the
+ * newest MAX_DEAD_LETTERS are kept, and they're never sent.
  */
-/* package */ class MPDbAdapter {
+/* package */ class MPDbAdapter implements RecordStore {
     private static final String LOGTAG = "MixpanelAPI";
 
     public enum Table {
         EVENTS ("events"),
-        PEOPLE ("people");
+        PEOPLE ("people"),
+        PRIORITY_EVENTS ("priority_events");
 
         Table(String name) {
             mTableName = name;
@@ -40,25 +99,71 @@ import android.util.Log;
     }
 
     private static final String DATABASE_NAME = "mixpanel";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 11;
 
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
+    public static final String KEY_ENCODING = "encoding";
+    public static final String KEY_INSERT_ID = "insert_id";
+    public static final String KEY_SOURCE = "source";
+    public static final String KEY_REASON = "reason";
+    public static final String KEY_DEAD_AT = "dead_at";
+
+    private static final String DEAD_LETTERS_TABLE = "dead_letters";
+    private static final int MAX_DEAD_LETTERS = 100;
+
+    // The last _id copied from each table of a quarantined database, so a salvage
+    // interrupted by the process dying carries on where it stopped instead of copying rows twice.
+    private static final String SALVAGE_PROGRESS_TABLE = "salvage_progress";
+    private static final String KEY_TABLE_NAME = "table_name";
+    private static final String KEY_LAST_ID = "last_id";
+
+    // Values of KEY_ENCODING. These are stored on disk, so never reuse or renumber them.
+    private static final int ENCODING_JSON = 0; // KEY_DATA is a JSON string
+    private static final int ENCODING_DEFLATE = 1; // KEY_DATA is a BLOB from RecordCompressor
 
-    private static final String CREATE_EVENTS_TABLE =
-       "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+    private static final String CREATE_PRIORITY_EVENTS_TABLE =
+       "CREATE TABLE " + Table.PRIORITY_EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
-        KEY_CREATED_AT + " INTEGER NOT NULL);";
-    private static final String CREATE_PEOPLE_TABLE =
-       "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_ENCODING + " INTEGER NOT NULL DEFAULT " + ENCODING_JSON + ", " +
+        KEY_INSERT_ID + " TEXT);";
+    private static final String CREATE_DEAD_LETTERS_TABLE =
+       "CREATE TABLE " + DEAD_LETTERS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
-        KEY_CREATED_AT + " INTEGER NOT NULL);";
-    private static final String EVENTS_TIME_INDEX =
-        "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
-        " (" + KEY_CREATED_AT + ");";
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_ENCODING + " INTEGER NOT NULL DEFAULT " + ENCODING_JSON + ", " +
+        KEY_SOURCE + " STRING NOT NULL, " +
+        KEY_REASON + " INTEGER NOT NULL, " +
+        KEY_DEAD_AT + " INTEGER NOT NULL);";
+    private static final String CREATE_SALVAGE_PROGRESS_TABLE =
+       "CREATE TABLE " + SALVAGE_PROGRESS_TABLE + " (" + KEY_TABLE_NAME + " STRING PRIMARY KEY, " +
+        KEY_LAST_ID + " INTEGER NOT NULL);";
     private static final String PEOPLE_TIME_INDEX =
-        "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.PEOPLE.getName() +
+        "CREATE INDEX IF NOT EXISTS people_time_idx ON " + Table.PEOPLE.getName() +
+        " (" + KEY_CREATED_AT + ");";
+    private static final String PRIORITY_EVENTS_TIME_INDEX =
+        "CREATE INDEX IF NOT EXISTS priority_events_time_idx ON " + Table.PRIORITY_EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
+    private static final String EVENTS_INSERT_ID_INDEX =
+        "CREATE UNIQUE INDEX IF NOT EXISTS events_insert_id_idx ON " + Table.EVENTS.getName() +
+        " (" + KEY_INSERT_ID + ");";
+    private static final String PRIORITY_EVENTS_INSERT_ID_INDEX =
+        "CREATE UNIQUE INDEX IF NOT EXISTS priority_events_insert_id_idx ON " + Table.PRIORITY_EVENTS.getName() +
+        " (" + KEY_INSERT_ID + ");";
+
+    // Partitions are started at most once per PARTITION_MILLIS
+    private static final long PARTITION_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long NOT_A_PARTITION = Long.MIN_VALUE;
+
+    // Every file SQLite may keep for a database, as suffixes of the database file's path
+    private static final String[] DATABASE_FILE_SUFFIXES = { "", "-journal", "-wal", "-shm" };
+
+    // Writes that find the database locked are tried this many times, waiting
+    // WRITE_RETRY_BACKOFF_MILLIS before the second attempt and twice as long before each after that.
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final long WRITE_RETRY_BACKOFF_MILLIS = 50;
+    private static final long INTEGRITY_CHECK_INTERVAL = 10 * 60 * 1000;
 
     private final MPDatabaseHelper mDb;
 
@@ -68,34 +173,146 @@ import android.util.Log;
             mDatabaseFile = context.getDatabasePath(dbName);
         }
 
+        @TargetApi(11)
+        MPDatabaseHelper(Context context, String dbName, DatabaseErrorHandler errorHandler) {
+            super(context, dbName, null, DATABASE_VERSION, errorHandler);
+            mDatabaseFile = context.getDatabasePath(dbName);
+        }
+
         /**
-         * Completely deletes the DB file from the file system.
+         * Completely deletes the DB file from the file system,
+         * along with any write-ahead log or journal files.
          */
         public void deleteDatabase() {
             close();
-            mDatabaseFile.delete();
+            deleteFiles(mDatabaseFile);
+        }
+
+        /**
+         * Moves the DB file, along with any write-ahead log or journal files, to
+         * getQuarantineFile() so that the next open starts over with an empty database.
+         * Only the most recently quarantined database is kept.
+         */
+        public void quarantineDatabase() {
+            close();
+            final File quarantineFile = getQuarantineFile();
+            deleteFiles(quarantineFile);
+
+            boolean moved = true;
+            for (final String suffix : DATABASE_FILE_SUFFIXES) {
+                final File file = new File(mDatabaseFile.getPath() + suffix);
+                if (file.exists()) {
+                    moved = file.renameTo(new File(quarantineFile.getPath() + suffix)) && moved;
+                }
+            }
+
+            if (! moved) {
+                Log.e(LOGTAG, "Could not set aside damaged Mixpanel DB. Deleting it.");
+                deleteFiles(mDatabaseFile);
+                deleteFiles(quarantineFile);
+            }
+        }
+
+        public File getQuarantineFile() {
+            return new File(mDatabaseFile.getPath() + "-quarantine");
+        }
+
+        public static void deleteFiles(File databaseFile) {
+            for (final String suffix : DATABASE_FILE_SUFFIXES) {
+                new File(databaseFile.getPath() + suffix).delete();
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             if (MPConfig.DEBUG) Log.d(LOGTAG, "Creating a new Mixpanel events DB");
 
-            db.execSQL(CREATE_EVENTS_TABLE);
-            db.execSQL(CREATE_PEOPLE_TABLE);
-            db.execSQL(EVENTS_TIME_INDEX);
-            db.execSQL(PEOPLE_TIME_INDEX);
+            // Record tables are partitioned, and each partition is created when it's first written to
+            db.execSQL(CREATE_DEAD_LETTERS_TABLE);
+            db.execSQL(CREATE_SALVAGE_PROGRESS_TABLE);
         }
 
+        // Each step takes the schema from one version to the next, so a database
+        // of any supported version is brought up to date by running the steps in order.
+        // Steps run inside of the upgrade transaction, so they must be quick- anything
+        // that touches every row belongs in migrateLegacyRows instead.
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
+            if (oldVersion < 4) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, setting aside old Mixpanel events DB tables");
+
+                // Renaming is cheap no matter how many rows are queued. The rows
+                // themselves are moved later, on the worker thread.
+                db.execSQL("DROP INDEX IF EXISTS time_idx");
+                for (final Table table : Table.values()) {
+                    final String legacyName = getLegacyName(table);
+                    db.execSQL("DROP TABLE IF EXISTS " + legacyName);
+                    if (tableExists(db, table.getName())) {
+                        db.execSQL("ALTER TABLE " + table.getName() + " RENAME TO " + legacyName);
+                    }
+                }
+                onCreate(db);
+                return;
+            }
+
+            if (oldVersion < 5) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding record encodings to Mixpanel events DB");
+
+                // Existing rows are all plain JSON, which is what the column default says.
+                for (final Table table : new Table[] { Table.EVENTS, Table.PEOPLE }) {
+                    db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " +
+                            KEY_ENCODING + " INTEGER NOT NULL DEFAULT " + ENCODING_JSON);
+                }
+            }
+
+            if (oldVersion < 6) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, indexing Mixpanel people records by time");
+
+                // The people index used to share a name with the events index, so it was never created.
+                // People tables are small, so building it here is quick.
+                db.execSQL(PEOPLE_TIME_INDEX);
+            }
+
+            if (oldVersion < 7) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding a table for Mixpanel priority events");
+
+                db.execSQL(CREATE_PRIORITY_EVENTS_TABLE);
+                db.execSQL(PRIORITY_EVENTS_TIME_INDEX);
+            }
 
-            db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
-            db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
-            db.execSQL(CREATE_EVENTS_TABLE);
-            db.execSQL(CREATE_PEOPLE_TABLE);
-            db.execSQL(EVENTS_TIME_INDEX);
-            db.execSQL(PEOPLE_TIME_INDEX);
+            if (oldVersion < 8) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding insert ids to Mixpanel events DB");
+
+                // Rows already queued have no insert id. NULLs never conflict in a unique index,
+                // so they're all kept. The priority table already has the column if it was just created.
+                final Table[] tables = oldVersion < 7 ?
+                        new Table[] { Table.EVENTS, Table.PEOPLE } :
+                        new Table[] { Table.EVENTS, Table.PEOPLE, Table.PRIORITY_EVENTS };
+                for (final Table table : tables) {
+                    db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_INSERT_ID + " TEXT");
+                }
+                db.execSQL(EVENTS_INSERT_ID_INDEX);
+                db.execSQL(PRIORITY_EVENTS_INSERT_ID_INDEX);
+            }
+
+            if (oldVersion < 9) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding a dead letter table to Mixpanel events DB");
+
+                db.execSQL(CREATE_DEAD_LETTERS_TABLE);
+            }
+
+            if (oldVersion < 10) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding a salvage progress table to Mixpanel events DB");
+
+                db.execSQL(CREATE_SALVAGE_PROGRESS_TABLE);
+            }
+
+            if (oldVersion < 11) {
+                if (MPConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, partitioning Mixpanel events DB by day");
+
+                // Nothing to move. The existing tables are read as the oldest partition of each table,
+                // and new partitions take up their _ids where they leave off.
+            }
         }
 
         private final File mDatabaseFile;
@@ -106,52 +323,80 @@ import android.util.Log;
     }
 
     public MPDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, MPConfig.getInstance(context));
+    }
+
+    public MPDbAdapter(Context context, MPConfig config) {
+        this(context, DATABASE_NAME, config);
+    }
+
+    public MPDbAdapter(Context context, String dbName, MPConfig config) {
+        mDb = makeDatabaseHelper(context, dbName);
+        mCompressRecords = config.getCompressStoredRecords();
+        mBatchSize = config.getFlushBatchSize();
+        mBatchMaxBytes = config.getFlushBatchMaxBytes();
+        mCompressor = null;
+        mStatements = new HashMap<String, PartitionStatements>();
+        mPartitions = new EnumMap<Table, List<String>>(Table.class);
+        mRowCounts = new EnumMap<Table, Integer>(Table.class);
+        mSalvagedIds = new EnumMap<Table, Long>(Table.class);
+        mDatabase = null;
+        mBatchRecords = null;
+        mLastIntegrityCheck = -1;
+        mSchemaVersion = -1;
+        mSchemaVersionQuery = null;
     }
 
     /**
      * Adds a JSON string representing an event with properties or a person record
      * to the SQLiteDatabase.
+     *
+     * <p>Rows are stored as serialized JSON objects, ready to be joined into a
+     * batch by generateDataString without being parsed again, so records that
+     * can't be serialized are rejected here rather than at send time.
+     *
+     * <p>Events with the same $insert_id as an event already in the table are ignored.
+     *
      * @param j the JSON to record
      * @param table the table to insert into, either "events" or "people"
      * @return the number of rows in the table, or -1 on failure
      */
+    @Override
     public int addJSON(JSONObject j, Table table) {
         final String tableName = table.getName();
-
-        Cursor c = null;
         int count = -1;
 
-        try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            db.insert(tableName, null, cv);
-
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName, null);
-            c.moveToFirst();
-            count = c.getInt(0);
-        } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "addJSON " + tableName + " FAILED. Deleting DB.", e);
+        final String data = j.toString();
+        if (! isSerializedObject(data)) {
+            Log.e(LOGTAG, "addJSON " + tableName + " given a record that can't be serialized, dropping it.");
+            return getRowCount(table);
+        }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
-        } finally {
-            if (c != null) {
-                c.close();
+        final BatchRecord record = new BatchRecord(table, data, getInsertId(j), System.currentTimeMillis());
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final int countBefore = getRowCount(table);
+                final boolean inserted = insertRecord(record);
+                if (null != mBatchRecords) {
+                    mBatchRecords.add(record);
+                }
+                if (inserted) {
+                    if (countBefore >= 0) {
+                        count = countBefore + 1;
+                        mRowCounts.put(table, count);
+                    }
+                } else {
+                    // Nothing inserted, so the insert id is already queued
+                    if (MPConfig.DEBUG) Log.d(LOGTAG, "Ignoring a record with an insert id already queued in " + tableName);
+                    count = countBefore;
+                }
+                return count;
+            } catch (final SQLiteException e) {
+                if (! handleWriteFailure("addJSON " + tableName, e, attempt)) {
+                    return count;
+                }
             }
-            mDb.close();
         }
-        return count;
     }
 
     /**
@@ -159,22 +404,75 @@ import android.util.Log;
      * @param last_id the last id to delete
      * @param table the table to remove events from, either "events" or "people"
      */
+    @Override
     public void cleanupEvents(String last_id, Table table) {
         final String tableName = table.getName();
 
+        final long lastId = parseId(last_id);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                removeThrough(table, lastId);
+                return;
+            } catch (final SQLiteException e) {
+                if (! handleWriteFailure("cleanupEvents " + tableName + " by id", e, attempt)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves events with an _id <= last_id from table into the dead letter table, so they
+     * won't be sent again but can still be looked at. Only the newest MAX_DEAD_LETTERS
+     * dead letters are kept.
+     *
+     * @param last_id the last id to move
+     * @param table the table to move events from
+     * @param reason why the events were refused, the HTTP status sent by the server
+     */
+    @Override
+    public void deadLetter(String last_id, Table table, int reason) {
+        final String tableName = table.getName();
+        final long lastId = parseId(last_id);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    for (final String partition : getPartitions(table)) {
+                        db.execSQL("INSERT INTO " + DEAD_LETTERS_TABLE + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " +
+                                KEY_ENCODING + ", " + KEY_SOURCE + ", " + KEY_REASON + ", " + KEY_DEAD_AT + ") " +
+                                "SELECT " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_ENCODING + ", ?, ?, ? FROM " +
+                                partition + " WHERE _id <= ?",
+                                new Object[] { tableName, reason, System.currentTimeMillis(), lastId });
+                    }
+                    removeThrough(table, lastId);
+                    db.execSQL("DELETE FROM " + DEAD_LETTERS_TABLE + " WHERE _id <= " +
+                            "(SELECT MAX(_id) FROM " + DEAD_LETTERS_TABLE + ") - " + MAX_DEAD_LETTERS);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                return;
+            } catch (final SQLiteException e) {
+                forgetPartitions(); // Partitions dropped in the transaction have been rolled back
+                if (! handleWriteFailure("deadLetter " + tableName, e, attempt)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of records kept in the dead letter table, or -1 if the database can't be read
+     */
+    public int getDeadLetterCount() {
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, "_id <= " + last_id, null);
+            return (int) DatabaseUtils.queryNumEntries(getDatabase(), DEAD_LETTERS_TABLE);
         } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "cleanupEvents " + tableName + " by id FAILED. Deleting DB.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
-        } finally {
-            mDb.close();
+            Log.e(LOGTAG, "Could not count dead letters", e);
+            return -1;
         }
     }
 
@@ -183,85 +481,1037 @@ import android.util.Log;
      * @param time the unix epoch in milliseconds to remove events before
      * @param table the table to remove events from, either "events" or "people"
      */
+    @Override
     public void cleanupEvents(long time, Table table) {
         final String tableName = table.getName();
 
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (0 == getRowCount(table)) {
+                    return;
+                }
+
+                // Answered from each partition's time index, so checking is cheap even when the table is large.
+                // Rows salvaged or migrated from elsewhere keep their own times, so every partition is checked.
+                final List<String> partitions = new ArrayList<String>(getPartitions(table));
+                for (int i = 0; i < partitions.size(); i++) {
+                    final String partition = partitions.get(i);
+                    final PartitionStatements statements = getStatements(partition);
+                    if (statements.newestCreatedAt.simpleQueryForLong() <= time && i < partitions.size() - 1) {
+                        dropPartition(table, partition);
+                    } else if (statements.oldestCreatedAt.simpleQueryForLong() <= time) {
+                        statements.deleteByTime.bindLong(1, time);
+                        executeDelete(statements.deleteByTime, table);
+                    }
+                }
+                return;
+            } catch (final SQLiteException e) {
+                if (! handleWriteFailure("cleanupEvents " + tableName + " by time", e, attempt)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows waiting in the given table. After the first call
+     * for a table, this is answered from memory without touching the database.
+     *
+     * @param table the table to count, either "events" or "people"
+     * @return the number of rows in the table, or -1 if the database can't be read
+     */
+    @Override
+    public int getRowCount(Table table) {
+        Integer count = mRowCounts.get(table);
+        if (null == count) {
+            try {
+                count = 0;
+                for (final String partition : getPartitions(table)) {
+                    count += (int) DatabaseUtils.queryNumEntries(getDatabase(), partition);
+                }
+                mRowCounts.put(table, count);
+            } catch (final SQLiteException e) {
+                Log.e(LOGTAG, "Could not count rows in " + table.getName(), e);
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves rows out of tables set aside by an upgrade from an old database version and into
+     * the current tables. Only moves up to maxRows rows from each table, so that callers can
+     * spread a large migration out over time rather than stall while it runs.
+     *
+     * @param maxRows the largest number of rows to move from each table
+     * @return true if there are more rows left to migrate
+     */
+    @Override
+    public boolean migrateLegacyRows(int maxRows) {
+        if (! hasLegacyRows()) {
+            return false;
+        }
+
+        boolean rowsRemain = false;
+        for (final Table table : Table.values()) {
+            final String legacyName = getLegacyName(table);
+            try {
+                final SQLiteDatabase db = getDatabase();
+                if (! tableExists(db, legacyName)) {
+                    continue;
+                }
+
+                db.beginTransaction();
+                try {
+                    final String oldestRows = "SELECT _id FROM " + legacyName + " ORDER BY _id ASC LIMIT " + maxRows;
+                    db.execSQL("INSERT INTO " + getInsertPartition(table) + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ") " +
+                            "SELECT " + KEY_DATA + ", " + KEY_CREATED_AT + " FROM " + legacyName +
+                            " WHERE _id IN (" + oldestRows + ") ORDER BY _id ASC");
+                    db.execSQL("DELETE FROM " + legacyName + " WHERE _id IN (" + oldestRows + ")");
+
+                    final boolean tableEmpty = DatabaseUtils.queryNumEntries(db, legacyName) == 0;
+                    if (tableEmpty) {
+                        db.execSQL("DROP TABLE " + legacyName);
+                        if (MPConfig.DEBUG) Log.d(LOGTAG, "Finished migrating old rows into " + table.getName());
+                    }
+                    rowsRemain = rowsRemain || ! tableEmpty;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    forgetPartitions(); // A partition started in the transaction may have been rolled back
+                }
+            } catch (final SQLiteException e) {
+                // Most likely the old table doesn't look the way we expect. There is
+                // nothing more we can do with it, so get it out of the way.
+                Log.e(LOGTAG, "Could not migrate old rows into " + table.getName() + ", discarding them.", e);
+                try {
+                    getDatabase().execSQL("DROP TABLE IF EXISTS " + legacyName);
+                } catch (final SQLiteException dropException) {
+                    handleWriteFailure("Discarding old table " + legacyName, dropException, MAX_WRITE_ATTEMPTS);
+                    return false;
+                }
+            }
+        }
+
+        mHasLegacyRows = rowsRemain;
+        return rowsRemain;
+    }
+
+    /**
+     * @return true if an upgrade left rows behind for migrateLegacyRows to move.
+     */
+    @Override
+    public boolean hasLegacyRows() {
+        if (null == mHasLegacyRows) {
+            try {
+                final SQLiteDatabase db = getDatabase();
+                boolean found = false;
+                for (final Table table : Table.values()) {
+                    found = found || tableExists(db, getLegacyName(table));
+                }
+                mHasLegacyRows = found;
+            } catch (final SQLiteException e) {
+                Log.e(LOGTAG, "Could not check for old rows to migrate", e);
+                return false;
+            }
+        }
+        return mHasLegacyRows;
+    }
+
+    /**
+     * Starts a transaction that will hold every subsequent write until endBatch() is called,
+     * so a group of records can be committed (and synced to disk) all at once.
+     */
+    @Override
+    public void beginBatch() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                getDatabase().beginTransaction();
+                mBatchRecords = new ArrayList<BatchRecord>();
+                return;
+            } catch (final SQLiteException e) {
+                if (! handleWriteFailure("beginBatch", e, attempt)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits all writes made since the last call to beginBatch().
+     */
+    @Override
+    public void endBatch() {
+        // If the DB turns out to be damaged, the batch is written again to a new one and committed there
+        for (int attempt = 1; null != mDatabase && mDatabase.inTransaction(); attempt++) {
+            try {
+                mDatabase.setTransactionSuccessful();
+                mDatabase.endTransaction();
+                break;
+            } catch (final SQLiteException e) {
+                if (! handleWriteFailure("endBatch", e, attempt)) {
+                    break;
+                }
+            }
+        }
+        mBatchRecords = null;
+    }
+
+    /**
+     * Deletes the database, along with any damaged database waiting to be salvaged.
+     */
+    @Override
+    public void deleteDB() {
+        abandonDatabase();
+        releaseCompressor();
+        mDb.deleteDatabase();
+        // The salvage progress went with the database, so only the files are left to remove
+        MPDatabaseHelper.deleteFiles(mDb.getQuarantineFile());
+        mSalvagedIds.clear();
+        mHasQuarantinedRows = false;
+    }
+
+    /**
+     * @return true if a damaged database was set aside, and salvageQuarantinedRows has
+     * not yet finished with it.
+     */
+    @Override
+    public boolean hasQuarantinedRows() {
+        if (null == mHasQuarantinedRows) {
+            mHasQuarantinedRows = mDb.getQuarantineFile().exists();
+        }
+        return mHasQuarantinedRows;
+    }
+
+    /**
+     * Copies rows out of a damaged database set aside by an earlier failure and into the current
+     * tables. Only copies up to maxRows rows from each table, so that callers can spread the work
+     * out over time. Rows past the first unreadable spot in a table are given up on. Once
+     * everything readable has been copied, the damaged database is deleted.
+     *
+     * @param maxRows the largest number of rows to copy from each table
+     * @return true if there are more rows left to salvage
+     */
+    @Override
+    public boolean salvageQuarantinedRows(int maxRows) {
+        if (! hasQuarantinedRows()) {
+            return false;
+        }
+
+        final SQLiteDatabase quarantined;
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            quarantined = openQuarantinedDatabase(mDb.getQuarantineFile());
         } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "cleanupEvents " + tableName + " by time FAILED. Deleting DB.", e);
+            Log.e(LOGTAG, "Could not open damaged Mixpanel DB, discarding it.", e);
+            discardQuarantine();
+            return false;
+        }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+        // Reading problems are dealt with in salvageRows, so anything thrown
+        // here means the current database couldn't take the rows.
+        boolean rowsRemain = false;
+        SQLiteException writeFailure = null;
+        try {
+            for (final Table table : Table.values()) {
+                rowsRemain = salvageRows(quarantined, table, maxRows) || rowsRemain;
+            }
+        } catch (final SQLiteException e) {
+            writeFailure = e;
         } finally {
-            mDb.close();
+            quarantined.close();
+        }
+
+        if (null != writeFailure) {
+            Log.e(LOGTAG, "Could not copy rows out of damaged Mixpanel DB, discarding them.");
+            discardQuarantine();
+            handleWriteFailure("salvageQuarantinedRows", writeFailure, MAX_WRITE_ATTEMPTS);
+            return false;
+        }
+
+        if (! rowsRemain) {
+            if (MPConfig.DEBUG) Log.d(LOGTAG, "Finished salvaging rows from damaged Mixpanel DB");
+            discardQuarantine();
         }
+        return rowsRemain;
     }
 
-    public void deleteDB() {
-        mDb.deleteDatabase();
+    /**
+     * Releases the database connection and all compiled statements. The connection
+     * will be reopened on the next call that needs it.
+     */
+    @Override
+    public void close() {
+        endBatch();
+        closeStatements();
+        releaseCompressor();
+        mHasLegacyRows = null;
+        mDatabase = null;
+        mDb.close();
     }
 
 
     /**
      * Returns the data string to send to Mixpanel and the maximum ID of the row that
-     * we're sending, so we know what rows to delete when a track request was successful.
+     * we're sending, so we know what rows to delete when a track request was successful,
+     * along with the number of rows in the data string.
+     * Batches are limited by com.mixpanel.android.MPConfig.FlushBatchSize and
+     * com.mixpanel.android.MPConfig.FlushBatchMaxBytes.
      *
      * @param table the table to read the JSON from, either "events" or "people"
-     * @return String array containing the maximum ID and the data string
-     * representing the events, or null if none could be successfully retrieved.
+     * @return String array containing the maximum ID, the data string
+     * representing the events and the number of events in it, or null if none
+     * could be successfully retrieved.
      */
+    @Override
     public String[] generateDataString(Table table) {
+        return generateDataString(table, mBatchSize, mBatchMaxBytes);
+    }
+
+    /**
+     * Like generateDataString(Table), but with explicit limits on the size of the batch.
+     *
+     * <p>The batch will hold at most maxRows rows, and will be no longer than maxBytes
+     * when encoded as UTF-8- unless the oldest row is larger than maxBytes on its own,
+     * in which case that row is returned alone so the queue can't get stuck behind it.
+     *
+     * @param table the table to read the JSON from, either "events" or "people"
+     * @param maxRows the largest number of rows to include in the batch
+     * @param maxBytes the largest size of the batch in bytes
+     * @return String array containing the maximum ID, the data string
+     * representing the events and the number of events in it, or null if none
+     * could be successfully retrieved.
+     */
+    @Override
+    public String[] generateDataString(Table table, int maxRows, int maxBytes) {
+        final StringWriter batch = new StringWriter();
+        final RecordWriter out = new RecordWriter(batch);
+        try {
+            final String last_id = writeDataString(table, maxRows, maxBytes, out);
+            out.finish();
+            if (last_id != null && out.getRecordCount() > 0) {
+                final String[] ret = {last_id, batch.toString(), Integer.toString(out.getRecordCount())};
+                return ret;
+            }
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "generateDataString " + table.getName(), e);
+
+            // We'll dump the DB on write failures, but with reads we can
+            // let things ride in hopes the issue clears up.
+            // (A bit more likely, since we're opening the DB for read and not write.)
+            // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
+        }
+        return null;
+    }
+
+    /**
+     * Writes the rows generateDataString(table, maxRows, maxBytes) would batch together to out,
+     * one at a time as they're read from the database, so the batch is never held in memory.
+     * Rows that can't be read are left out, but are covered by the returned id so that
+     * they're cleaned up along with the batch.
+     *
+     * @return the maximum ID of the rows read, or null if the table is empty
+     * @throws IOException if out can't be written to or the database can't be read
+     */
+    @Override
+    public String writeDataString(Table table, int maxRows, int maxBytes, RecordWriter out) throws IOException {
         Cursor c = null;
-        String data = null;
         String last_id = null;
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getReadableDatabase();
-            c = db.rawQuery("SELECT * FROM " + tableName  +
-                    " ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50", null);
-            final JSONArray arr = new JSONArray();
+            final SQLiteDatabase db = getDatabase();
 
-            while (c.moveToNext()) {
-                if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+            // Rows are already serialized JSON objects, so the batch is just
+            // the rows joined together inside of an array.
+            int rowsRead = 0;
+            int rowsInBatch = 0;
+            int batchBytes = 2; // For the brackets
+            readPartitions:
+            for (final String partition : getPartitions(table)) {
+                if (rowsRead >= Math.max(1, maxRows)) {
+                    break;
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+
+                // Ordered by _id rather than time, since rows are deleted by _id once they're sent.
+                // (Rows migrated from an old database are older than their _ids suggest.)
+                c = db.rawQuery("SELECT _id, " + KEY_DATA + ", " + KEY_ENCODING + " FROM " + partition +
+                        " ORDER BY _id ASC LIMIT " + (Math.max(1, maxRows) - rowsRead), null);
+                final int idColumn = c.getColumnIndex("_id");
+                final int dataColumn = c.getColumnIndex(KEY_DATA);
+                final int encodingColumn = c.getColumnIndex(KEY_ENCODING);
+                while (c.moveToNext()) {
+                    rowsRead++;
+                    final String row = readRow(c, dataColumn, encodingColumn);
+                    if (! isSerializedObject(row)) {
+                        last_id = c.getString(idColumn); // Ignore this object, but clean it up with the batch
+                        continue;
+                    }
+
+                    final int rowBytes = StringUtils.utf8Length(row) + (rowsInBatch > 0 ? 1 : 0);
+                    if (rowsInBatch > 0 && batchBytes + rowBytes > maxBytes) {
+                        break readPartitions; // This row will lead off the next batch
+                    }
+
+                    out.write(row);
+                    batchBytes += rowBytes;
+                    rowsInBatch++;
+                    last_id = c.getString(idColumn);
                 }
+                c.close();
+                c = null;
+            }
+        } catch (final SQLiteException e) {
+            // Thrown rather than swallowed, since part of the batch may already be on its way
+            final IOException readFailure = new IOException("Could not read " + tableName + " rows");
+            readFailure.initCause(e);
+            throw readFailure;
+        } finally {
+            if (c != null) {
+                c.close();
             }
+        }
+
+        return last_id;
+    }
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+    private String readRow(Cursor c, int dataColumn, int encodingColumn) {
+        final int encoding = c.getInt(encodingColumn);
+        if (encoding == ENCODING_JSON) {
+            return c.getString(dataColumn);
+        }
+
+        if (encoding == ENCODING_DEFLATE) {
+            try {
+                return getCompressor().decompress(c.getBlob(dataColumn));
+            } catch (final DataFormatException e) {
+                Log.e(LOGTAG, "Could not decompress a stored record, ignoring it.", e);
+                return null;
             }
+        }
+
+        Log.e(LOGTAG, "Stored record has unknown encoding " + encoding + ", ignoring it.");
+        return null;
+    }
+
+    // Rows may have been compressed by an earlier run even if compression is off now.
+    private RecordCompressor getCompressor() {
+        if (null == mCompressor) {
+            mCompressor = new RecordCompressor();
+        }
+        return mCompressor;
+    }
+
+    // Deflaters and inflaters hold native memory the garbage collector can't see
+    private void releaseCompressor() {
+        if (null != mCompressor) {
+            mCompressor.end();
+            mCompressor = null;
+        }
+    }
+
+    // The $insert_id property of an event, or null for people records and events without one.
+    private static String getInsertId(JSONObject record) {
+        final JSONObject properties = record.optJSONObject("properties");
+        if (null == properties || properties.isNull("$insert_id")) {
+            return null;
+        }
+        return properties.optString("$insert_id", null);
+    }
+
+    // A cheap structural check, not a parse. Everything we write comes from JSONObject.toString(),
+    // so this only catches records that failed to serialize or rows damaged on disk. A row damaged
+    // inside its braces still passes, and is set aside by deadLetter once the server refuses it.
+    private static boolean isSerializedObject(String data) {
+        return null != data &&
+               data.length() >= 2 &&
+               data.charAt(0) == '{' &&
+               data.charAt(data.length() - 1) == '}';
+    }
+
+    private static String getLegacyName(Table table) {
+        return "legacy_" + table.getName();
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String tableName) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { tableName }) > 0;
+    }
+
+    // Decides what to do about a failed write, given which attempt at it failed. Returns
+    // true if the caller should try the write again. A locked database is waited out, a full disk
+    // costs only this write, and a damaged database is set aside so the write can go to a new one.
+    private boolean handleWriteFailure(String operation, SQLiteException e, int attempt) {
+        final boolean attemptsLeft = attempt < MAX_WRITE_ATTEMPTS;
+        if (isLockedException(e)) {
+            if (attemptsLeft) {
+                Log.w(LOGTAG, operation + " found the DB locked, trying again.", e);
+                SystemClock.sleep(WRITE_RETRY_BACKOFF_MILLIS << (attempt - 1));
+                return true;
+            }
+            Log.e(LOGTAG, operation + " FAILED, DB is still locked.", e);
+            return false;
+        }
+
+        if (e instanceof SQLiteFullException) {
+            Log.e(LOGTAG, operation + " FAILED, disk is full.", e);
+            return false;
+        }
+
+        if (! (e instanceof SQLiteDatabaseCorruptException) && passesIntegrityCheck()) {
+            Log.e(LOGTAG, operation + " FAILED, but DB is intact.", e);
+            return false;
+        }
+
+        Log.e(LOGTAG, operation + " FAILED, DB is damaged. Setting it aside.", e);
+        quarantineDB();
+        return attemptsLeft;
+    }
+
+    private static boolean isLockedException(SQLiteException e) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return isDatabaseLockedException(e);
+        }
+        // Older platforms throw a plain SQLiteException, so all we have to go on is the message
+        final String message = e.getMessage();
+        return null != message && message.contains("database is locked");
+    }
+
+    @TargetApi(11)
+    private static boolean isDatabaseLockedException(SQLiteException e) {
+        return e instanceof SQLiteDatabaseLockedException;
+    }
+
+    // A full integrity check reads the whole database, so once the database has passed one,
+    // failures for the next INTEGRITY_CHECK_INTERVAL are taken to be transient without checking again.
+    private boolean passesIntegrityCheck() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastIntegrityCheck >= 0 && now - mLastIntegrityCheck < INTEGRITY_CHECK_INTERVAL) {
+            return true;
+        }
+
+        try {
+            final String result = DatabaseUtils.stringForQuery(getDatabase(), "PRAGMA integrity_check(1)", null);
+            final boolean passed = "ok".equalsIgnoreCase(result);
+            if (passed) {
+                mLastIntegrityCheck = now;
+            }
+            return passed;
         } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "generateDataString " + tableName, e);
+            Log.e(LOGTAG, "Could not check integrity of Mixpanel DB", e);
+            return false;
+        }
+    }
 
-            // We'll dump the DB on write failures, but with reads we can
-            // let things ride in hopes the issue clears up.
-            // (A bit more likely, since we're opening the DB for read and not write.)
-            // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
-            last_id = null;
-            data = null;
+    // Sets the damaged database aside. Records written since beginBatch were rolled back with it,
+    // so they're written again, in a new batch, to the new database.
+    private void quarantineDB() {
+        final List<BatchRecord> batchRecords = mBatchRecords;
+        abandonDatabase();
+        mDb.quarantineDatabase();
+        mSalvagedIds.clear();
+        mHasQuarantinedRows = true;
+        mLastIntegrityCheck = -1;
+
+        if (null != batchRecords) {
+            replayBatch(batchRecords);
+        }
+    }
+
+    private void replayBatch(List<BatchRecord> batchRecords) {
+        try {
+            getDatabase().beginTransaction();
+            mBatchRecords = new ArrayList<BatchRecord>(batchRecords.size());
+            for (final BatchRecord record : batchRecords) {
+                insertRecord(record);
+                mBatchRecords.add(record);
+            }
+            if (MPConfig.DEBUG) Log.d(LOGTAG, "Wrote " + batchRecords.size() + " records from the abandoned batch to a new DB");
+        } catch (final SQLiteException e) {
+            // Not handed to handleWriteFailure, since a new database failing too would only fail again
+            Log.e(LOGTAG, "Could not write " + batchRecords.size() + " records from the abandoned batch to a new DB, they are lost.", e);
+            abandonDatabase();
+        }
+    }
+
+    // Returns false if the record wasn't inserted because its insert id is already queued.
+    // For testing, to allow for Mocking.
+    /* package */ boolean insertRecord(BatchRecord record) {
+        final String partition = getInsertPartition(record.table);
+        if (null != record.insertId && isInsertIdQueued(record.table, partition, record.insertId)) {
+            return false;
+        }
+
+        final PartitionStatements statements = getStatements(partition);
+        if (null == record.insertId) {
+            statements.insert.bindNull(4);
+        } else {
+            statements.insert.bindString(4, record.insertId);
+        }
+        if (! mCompressRecords) {
+            statements.insert.bindString(1, record.data);
+            statements.insert.bindLong(3, ENCODING_JSON);
+        } else {
+            statements.insert.bindBlob(1, getCompressor().compress(record.data));
+            statements.insert.bindLong(3, ENCODING_DEFLATE);
+        }
+        statements.insert.bindLong(2, record.createdAt);
+        return -1 != statements.insert.executeInsert();
+    }
+
+    // For testing, to allow for Mocking.
+    /* package */ long getCurrentDay() {
+        return System.currentTimeMillis() / PARTITION_MILLIS;
+    }
+
+    private void discardQuarantine() {
+        MPDatabaseHelper.deleteFiles(mDb.getQuarantineFile());
+        mSalvagedIds.clear();
+        mHasQuarantinedRows = false;
+        try {
+            getDatabase().delete(SALVAGE_PROGRESS_TABLE, null, null);
+        } catch (final SQLiteException e) {
+            // Harmless, since the next quarantined database brings a new, empty one with it
+            Log.e(LOGTAG, "Could not clear salvage progress", e);
+        }
+    }
+
+    // Rolls back any open batch and forgets everything cached about the current database file.
+    private void abandonDatabase() {
+        if (null != mDatabase && mDatabase.inTransaction()) {
+            try {
+                mDatabase.endTransaction();
+            } catch (final SQLiteException e) {
+                Log.e(LOGTAG, "Could not roll back transaction before abandoning DB", e);
+            }
+        }
+        closeStatements();
+        mRowCounts.clear();
+        mHasLegacyRows = null;
+        mBatchRecords = null;
+        mDatabase = null;
+    }
+
+    // Copies the next rows of a table out of a quarantined database, returning true if
+    // more may remain. Read failures end the salvage of the table, write failures are thrown.
+    private boolean salvageRows(SQLiteDatabase quarantined, Table table, int maxRows) {
+        Long salvagedId = mSalvagedIds.get(table);
+        if (null == salvagedId) {
+            salvagedId = DatabaseUtils.longForQuery(getDatabase(),
+                    "SELECT COALESCE(MAX(" + KEY_LAST_ID + "), 0) FROM " + SALVAGE_PROGRESS_TABLE + " WHERE " + KEY_TABLE_NAME + " = ?",
+                    new String[] { table.getName() });
+        }
+        long lastId = salvagedId;
+        if (Long.MAX_VALUE == lastId) {
+            return false;
+        }
+
+        final List<ContentValues> rows = new ArrayList<ContentValues>();
+        boolean rowsRemain = false;
+        Cursor c = null;
+        try {
+            // _ids increase from one partition to the next, so lastId marks progress through all of them
+            for (final String partition : readPartitions(quarantined, table.getName())) {
+                if (rows.size() >= maxRows) {
+                    break;
+                }
+
+                // Selects every column, since the damaged database may be from an older version
+                c = quarantined.rawQuery("SELECT * FROM " + partition +
+                        " WHERE _id > " + lastId + " ORDER BY _id ASC LIMIT " + (maxRows - rows.size()), null);
+                final int idColumn = c.getColumnIndex("_id");
+                final int dataColumn = c.getColumnIndex(KEY_DATA);
+                final int createdAtColumn = c.getColumnIndex(KEY_CREATED_AT);
+                final int encodingColumn = c.getColumnIndex(KEY_ENCODING);
+                final int insertIdColumn = c.getColumnIndex(KEY_INSERT_ID);
+                while (c.moveToNext()) {
+                    final ContentValues row = new ContentValues();
+                    final int encoding = encodingColumn < 0 ? ENCODING_JSON : c.getInt(encodingColumn);
+                    if (ENCODING_DEFLATE == encoding) {
+                        row.put(KEY_DATA, c.getBlob(dataColumn));
+                    } else {
+                        row.put(KEY_DATA, c.getString(dataColumn));
+                    }
+                    row.put(KEY_CREATED_AT, c.getLong(createdAtColumn));
+                    row.put(KEY_ENCODING, encoding);
+                    if (insertIdColumn >= 0) {
+                        row.put(KEY_INSERT_ID, c.getString(insertIdColumn));
+                    }
+                    rows.add(row);
+                    lastId = c.getLong(idColumn);
+                }
+                c.close();
+                c = null;
+            }
+            rowsRemain = rows.size() >= maxRows;
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "Could not read damaged " + table.getName() + " rows after " + lastId + ", giving up on the rest.", e);
         } finally {
-            mDb.close();
-            if (c != null) {
+            if (null != c) {
                 c.close();
             }
         }
 
-        if (last_id != null && data != null) {
-            final String[] ret = {last_id, data};
-            return ret;
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            for (final ContentValues row : rows) {
+                // Rows tracked again since the database was set aside are already here
+                final String partition = getInsertPartition(table);
+                final String insertId = row.getAsString(KEY_INSERT_ID);
+                if (null == insertId || ! isInsertIdQueued(table, partition, insertId)) {
+                    db.insertWithOnConflict(partition, null, row, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+            // Committed along with the rows, so they're never copied again
+            final ContentValues progress = new ContentValues();
+            progress.put(KEY_TABLE_NAME, table.getName());
+            progress.put(KEY_LAST_ID, rowsRemain ? lastId : Long.MAX_VALUE);
+            db.insertWithOnConflict(SALVAGE_PROGRESS_TABLE, null, progress, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            forgetPartitions();
         }
-        return null;
+
+        mSalvagedIds.put(table, rowsRemain ? lastId : Long.MAX_VALUE);
+        return rowsRemain;
+    }
+
+    private SQLiteDatabase openQuarantinedDatabase(File quarantineFile) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return openQuarantinedDatabaseWithErrorHandler(quarantineFile);
+        }
+        return SQLiteDatabase.openDatabase(quarantineFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    @TargetApi(11)
+    private static SQLiteDatabase openQuarantinedDatabaseWithErrorHandler(File quarantineFile) {
+        return SQLiteDatabase.openDatabase(quarantineFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE,
+                new QuarantiningErrorHandler());
+    }
+
+    private static MPDatabaseHelper makeDatabaseHelper(Context context, String dbName) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return makeQuarantiningDatabaseHelper(context, dbName);
+        }
+        return new MPDatabaseHelper(context, dbName);
+    }
+
+    @TargetApi(11)
+    private static MPDatabaseHelper makeQuarantiningDatabaseHelper(Context context, String dbName) {
+        return new MPDatabaseHelper(context, dbName, new QuarantiningErrorHandler());
+    }
+
+    // The platform's default handler deletes a database as soon as it is found to be corrupt.
+    // We leave it in place instead, so that handleWriteFailure can set it aside for salvage.
+    @TargetApi(11)
+    private static class QuarantiningErrorHandler implements DatabaseErrorHandler {
+        @Override
+        public void onCorruption(SQLiteDatabase db) {
+            Log.e(LOGTAG, "Mixpanel DB reported corruption");
+        }
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (null == mDatabase) {
+            mDatabase = mDb.getWritableDatabase();
+            if (Build.VERSION.SDK_INT >= 11) {
+                enableWriteAheadLogging(mDatabase);
+            }
+        }
+        return mDatabase;
+    }
+
+    @TargetApi(11)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        // WAL lets us commit without rewriting the rollback journal on every insert,
+        // and keeps readers from blocking behind the writer.
+        if (! db.enableWriteAheadLogging()) {
+            if (MPConfig.DEBUG) Log.d(LOGTAG, "Could not enable write-ahead logging for Mixpanel DB");
+        }
+    }
+
+    // Returns the partitions of table, oldest first.
+    private List<String> getPartitions(Table table) {
+        if (null == mSchemaVersionQuery) {
+            mSchemaVersionQuery = getDatabase().compileStatement("PRAGMA schema_version");
+        }
+        final long schemaVersion = mSchemaVersionQuery.simpleQueryForLong();
+        if (schemaVersion != mSchemaVersion) {
+            // Partitions were started or dropped somewhere else, or a transaction that did so was rolled back
+            forgetPartitions();
+            mSchemaVersion = schemaVersion;
+        }
+
+        List<String> ret = mPartitions.get(table);
+        if (null == ret) {
+            ret = readPartitions(getDatabase(), table.getName());
+            mPartitions.put(table, ret);
+        }
+        return ret;
+    }
+
+    // Returns the partition new rows of table go to, starting today's if need be.
+    private String getInsertPartition(Table table) {
+        final String tableName = table.getName();
+        final List<String> partitions = getPartitions(table);
+        final long today = getCurrentDay();
+        if (! partitions.isEmpty()) {
+            // If the clock has gone back, rows keep going to the newest partition so they stay in order
+            final String newest = partitions.get(partitions.size() - 1);
+            if (getPartitionDay(tableName, newest) >= today) {
+                return newest;
+            }
+        }
+
+        final String partition = tableName + "_" + today;
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + partition + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_DATA + " STRING NOT NULL, " +
+                    KEY_CREATED_AT + " INTEGER NOT NULL, " +
+                    KEY_ENCODING + " INTEGER NOT NULL DEFAULT " + ENCODING_JSON + ", " +
+                    KEY_INSERT_ID + " TEXT);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + partition + "_time_idx ON " + partition +
+                    " (" + KEY_CREATED_AT + ");");
+            if (Table.PEOPLE != table) {
+                db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + partition + "_insert_id_idx ON " + partition +
+                        " (" + KEY_INSERT_ID + ");");
+            }
+
+            // _ids carry on from where the older partitions leave off. The newest partition is never
+            // dropped, so its sequence is always there to carry on from.
+            final StringBuilder older = new StringBuilder("?");
+            final List<String> args = new ArrayList<String>();
+            args.add(partition);
+            for (final String olderPartition : partitions) {
+                older.append(", ?");
+                args.add(olderPartition);
+            }
+            args.add(partition);
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, " +
+                    "(SELECT COALESCE(MAX(seq), 0) FROM sqlite_sequence WHERE name IN (" + older + ")) " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = ?)", args.toArray());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPartitions.remove(table);
+        }
+
+        if (MPConfig.DEBUG) Log.d(LOGTAG, "Started partition " + partition);
+        return partition;
+    }
+
+    // Returns true if a partition of table other than partition already holds a row with insertId.
+    // The partition itself is left to its unique index.
+    private boolean isInsertIdQueued(Table table, String partition, String insertId) {
+        for (final String other : getPartitions(table)) {
+            if (! other.equals(partition)) {
+                final SQLiteStatement countInsertId = getStatements(other).countInsertId;
+                countInsertId.bindString(1, insertId);
+                if (countInsertId.simpleQueryForLong() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Removes every row of table with an _id up to and including lastId.
+    private void removeThrough(Table table, long lastId) {
+        final List<String> partitions = new ArrayList<String>(getPartitions(table));
+        for (int i = 0; i < partitions.size(); i++) {
+            final String partition = partitions.get(i);
+            final long newestId = getStatements(partition).newestId.simpleQueryForLong();
+            if (newestId <= lastId && i < partitions.size() - 1) {
+                dropPartition(table, partition);
+            } else {
+                final SQLiteStatement deleteById = getStatements(partition).deleteById;
+                deleteById.bindLong(1, lastId);
+                executeDelete(deleteById, table);
+                if (newestId > lastId) {
+                    return; // Every later partition starts after this one
+                }
+            }
+        }
+    }
+
+    private void dropPartition(Table table, String partition) {
+        final PartitionStatements statements = mStatements.remove(partition);
+        if (null != statements) {
+            statements.close();
+        }
+        getDatabase().execSQL("DROP TABLE IF EXISTS " + partition);
+        mPartitions.remove(table);
+        mRowCounts.remove(table);
+        if (MPConfig.DEBUG) Log.d(LOGTAG, "Dropped partition " + partition);
+    }
+
+    // Forgets which partitions each table has, along with anything cached about them.
+    private void forgetPartitions() {
+        for (final PartitionStatements statements : mStatements.values()) {
+            statements.close();
+        }
+        mStatements.clear();
+        mPartitions.clear();
+        mRowCounts.clear();
+    }
+
+    // Lists the partitions of the table named tableName in db, oldest first. A table from
+    // before partitioning, with no day in its name, comes before all of the others.
+    private static List<String> readPartitions(SQLiteDatabase db, String tableName) {
+        final List<Long> days = new ArrayList<Long>();
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND (name = ? OR name LIKE ?)",
+                    new String[] { tableName, tableName + "_%" });
+            while (c.moveToNext()) {
+                final long day = getPartitionDay(tableName, c.getString(0));
+                if (day != NOT_A_PARTITION) {
+                    days.add(day);
+                }
+            }
+        } finally {
+            if (null != c) {
+                c.close();
+            }
+        }
+
+        Collections.sort(days);
+        final List<String> ret = new ArrayList<String>(days.size());
+        for (final long day : days) {
+            ret.add(day < 0 ? tableName : tableName + "_" + day);
+        }
+        return ret;
+    }
+
+    // The day a partition of the table named tableName was started, -1 for a table
+    // from before partitioning, or NOT_A_PARTITION if name isn't a partition of it.
+    private static long getPartitionDay(String tableName, String name) {
+        if (name.equals(tableName)) {
+            return -1;
+        }
+
+        final String prefix = tableName + "_";
+        final int length = name.length() - prefix.length();
+        if (! name.startsWith(prefix) || length <= 0 || length > 18) {
+            return NOT_A_PARTITION;
+        }
+        for (int i = prefix.length(); i < name.length(); i++) {
+            if (! Character.isDigit(name.charAt(i))) {
+                return NOT_A_PARTITION;
+            }
+        }
+        return Long.parseLong(name.substring(prefix.length()));
+    }
+
+    private static long parseId(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (final NumberFormatException e) {
+            Log.e(LOGTAG, "Not a row id: " + id, e);
+            return 0;
+        }
+    }
+
+    private PartitionStatements getStatements(String partition) {
+        PartitionStatements ret = mStatements.get(partition);
+        if (null == ret) {
+            ret = new PartitionStatements(getDatabase(), partition);
+            mStatements.put(partition, ret);
+        }
+        return ret;
+    }
+
+    private void executeDelete(SQLiteStatement delete, Table table) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            final int deleted = executeUpdateDelete(delete);
+            final Integer count = mRowCounts.get(table);
+            if (null != count) {
+                mRowCounts.put(table, Math.max(0, count - deleted));
+            }
+        } else {
+            // No way to learn how many rows were deleted, so count again when we next need to.
+            delete.execute();
+            mRowCounts.remove(table);
+        }
+    }
+
+    @TargetApi(11)
+    private static int executeUpdateDelete(SQLiteStatement delete) {
+        return delete.executeUpdateDelete();
+    }
+
+    private void closeStatements() {
+        forgetPartitions();
+        if (null != mSchemaVersionQuery) {
+            mSchemaVersionQuery.close();
+            mSchemaVersionQuery = null;
+        }
+        mSchemaVersion = -1;
     }
+
+    private static class PartitionStatements {
+        public PartitionStatements(SQLiteDatabase db, String partition) {
+            insert = db.compileStatement("INSERT OR IGNORE INTO " + partition +
+                    " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_ENCODING + ", " + KEY_INSERT_ID + ") VALUES (?, ?, ?, ?)");
+            countInsertId = db.compileStatement("SELECT COUNT(*) FROM " + partition + " WHERE " + KEY_INSERT_ID + " = ?");
+            deleteById = db.compileStatement("DELETE FROM " + partition + " WHERE _id <= ?");
+            deleteByTime = db.compileStatement("DELETE FROM " + partition + " WHERE " + KEY_CREATED_AT + " <= ?");
+            newestId = db.compileStatement("SELECT COALESCE(MAX(_id), 0) FROM " + partition);
+            oldestCreatedAt = db.compileStatement("SELECT COALESCE(MIN(" + KEY_CREATED_AT + "), " + Long.MAX_VALUE + ") FROM " + partition);
+            newestCreatedAt = db.compileStatement("SELECT COALESCE(MAX(" + KEY_CREATED_AT + "), 0) FROM " + partition);
+        }
+
+        public void close() {
+            insert.close();
+            countInsertId.close();
+            deleteById.close();
+            deleteByTime.close();
+            newestId.close();
+            oldestCreatedAt.close();
+            newestCreatedAt.close();
+        }
+
+        public final SQLiteStatement insert;
+        public final SQLiteStatement countInsertId;
+        public final SQLiteStatement deleteById;
+        public final SQLiteStatement deleteByTime;
+        public final SQLiteStatement newestId;
+        public final SQLiteStatement oldestCreatedAt;
+        public final SQLiteStatement newestCreatedAt;
+    }
+
+    // A record written by addJSON, kept until the batch it's in is committed
+    /* package */ static class BatchRecord {
+        public BatchRecord(Table table, String data, String insertId, long createdAt) {
+            this.table = table;
+            this.data = data;
+            this.insertId = insertId;
+            this.createdAt = createdAt;
+        }
+
+        public final Table table;
+        public final String data;
+        public final String insertId;
+        public final long createdAt;
+    }
+
+    private final boolean mCompressRecords;
+    private final int mBatchSize;
+    private final int mBatchMaxBytes;
+    private RecordCompressor mCompressor;
+    private final Map<String, PartitionStatements> mStatements; // By partition name
+    private final Map<Table, List<String>> mPartitions;
+    private final Map<Table, Integer> mRowCounts;
+    private final Map<Table, Long> mSalvagedIds;
+    private SQLiteDatabase mDatabase;
+    private Boolean mHasLegacyRows;
+    private Boolean mHasQuarantinedRows;
+    private List<BatchRecord> mBatchRecords; // null unless a batch is open
+    private long mLastIntegrityCheck;
+    private SQLiteStatement mSchemaVersionQuery;
+    private long mSchemaVersion;
 }
@@ -0,0 +1,113 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates individual stored records using a preset dictionary.
+ *
+ * <p>Stored records are small and very similar to each other, so most of what
+ * plain deflate could find in them is repeated across records rather than
+ * within a single one. Priming the compressor with the keys and values
+ * every record shares lets even a short record compress well.
+ *
+ * <p>The dictionary is part of the storage format. Records written with it can
+ * only be read with exactly the same bytes, so it must never be changed.
+ * A new dictionary needs a new encoding in MPDbAdapter.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used
+ * by a single thread, and {@link #end()} should be called once they're no longer needed.
+ */
+/* package */ class RecordCompressor {
+
+    public RecordCompressor() {
+        mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+        mInflater = new Inflater();
+        mBuffer = new byte[4096];
+    }
+
+    public byte[] compress(String record) {
+        final byte[] input;
+        try {
+            input = record.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(input);
+        mDeflater.finish();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        while (! mDeflater.finished()) {
+            final int count = mDeflater.deflate(mBuffer);
+            out.write(mBuffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public String decompress(byte[] compressed) throws DataFormatException {
+        mInflater.reset();
+        mInflater.setInput(compressed);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+        while (! mInflater.finished()) {
+            final int count = mInflater.inflate(mBuffer);
+            if (count == 0) {
+                if (mInflater.needsDictionary()) {
+                    mInflater.setDictionary(DICTIONARY);
+                } else if (mInflater.needsInput()) {
+                    throw new DataFormatException("Compressed record is truncated");
+                }
+            }
+            out.write(mBuffer, 0, count);
+        }
+
+        try {
+            return out.toString("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    /**
+     * Frees the native memory held by the compressor. It can't be used again afterward.
+     */
+    public void end() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    // Deflate finds dictionary matches more cheaply near the end of the dictionary,
+    // so the strings common to every single event come last.
+    private static final byte[] DICTIONARY;
+    static {
+        final String dictionary =
+            "{\"$distinct_id\":\"\",\"$token\":\"\",\"$time\":,\"$ignore_time\":true,\"$set\":{}," +
+            "\"$set_once\":{},\"$add\":{},\"$append\":{},\"$union\":{},\"$unset\":[],\"$delete\":\"\"," +
+            "\"$transactions\":{\"$amount\":,\"$time\":\"\"},\"$android_devices\":[\"\"]," +
+            "\"$android_lib_version\":\"\",\"$android_os\":\"Android\",\"$android_os_version\":\"\"," +
+            "\"$android_manufacturer\":\"\",\"$android_brand\":\"\",\"$android_model\":\"\"," +
+            "\"$android_app_version\":\"\",\"$android_app_version_code\":\"\"}" +
+            "\"mp_lib\":\"android\",\"$google_play_services\":\"available\",\"$has_nfc\":false," +
+            "\"$has_telephone\":true,\"$bluetooth_enabled\":false,\"$bluetooth_version\":\"ble\"," +
+            "\"$bluetooth_version\":\"classic\",\"$bluetooth_version\":\"none\",\"$screen_dpi\":," +
+            "\"$screen_height\":,\"$screen_width\":,\"$wifi\":true,\"$wifi\":false,\"$carrier\":\"\"," +
+            "\"$app_version\":\"\",\"$os\":\"Android\",\"$os_version\":\"\",\"$manufacturer\":\"\"," +
+            "\"$brand\":\"\",\"$model\":\"\",\"$lib_version\":\"\"," +
+            "{\"event\":\"\",\"properties\":{\"time\":,\"distinct_id\":\"\",\"token\":\"\"}}";
+        try {
+            DICTIONARY = dictionary.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final byte[] mBuffer;
+}
@@ -0,0 +1,117 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Storage for events and people records waiting to be sent to Mixpanel.
+ *
+ * <p>MPDbAdapter, backed by SQLite, is the default implementation. SegmentLogStore keeps
+ * records in memory-mapped append-only files instead, and is used when
+ * com.mixpanel.android.MPConfig.UseSegmentLogStorage is set.
+ *
+ * <p>Implementations need not be thread-safe. They are only used by the
+ * AnalyticsMessages worker thread.
+ */
+/* package */ interface RecordStore {
+    /**
+     * Adds a record to the end of the given table.
+     *
+     * @return the number of records in the table, or -1 on failure
+     */
+    public int addJSON(JSONObject j, MPDbAdapter.Table table);
+
+    /**
+     * Returns the oldest records in the given table joined into a JSON array, along with an id
+     * to pass to {@link #cleanupEvents(String, MPDbAdapter.Table)} once they have been sent
+     * and the number of records in the array.
+     *
+     * @return String array containing the id, the data string and the record count,
+     * or null if the table is empty
+     */
+    public String[] generateDataString(MPDbAdapter.Table table);
+
+    /**
+     * Like {@link #generateDataString(MPDbAdapter.Table)}, but with explicit limits on the
+     * number of records and the size in bytes of the batch.
+     */
+    public String[] generateDataString(MPDbAdapter.Table table, int maxRows, int maxBytes);
+
+    /**
+     * Writes the records {@link #generateDataString(MPDbAdapter.Table, int, int)} would batch
+     * together to out as they're read, without holding the batch in memory.
+     *
+     * @return the id to pass to cleanupEvents once the records have been sent, or null if the table is empty
+     * @throws IOException if out can't be written to or the store can't be read
+     */
+    public String writeDataString(MPDbAdapter.Table table, int maxRows, int maxBytes, RecordWriter out) throws IOException;
+
+    /**
+     * Removes every record up to and including the one with the given id,
+     * as returned by {@link #generateDataString(MPDbAdapter.Table)}.
+     */
+    public void cleanupEvents(String last_id, MPDbAdapter.Table table);
+
+    /**
+     * Removes every record up to and including the one with the given id, like
+     * {@link #cleanupEvents(String, MPDbAdapter.Table)}, but keeps them aside as dead letters
+     * rather than discarding them.
+     *
+     * @param reason why the records could not be sent, the HTTP status the server refused them with
+     */
+    public void deadLetter(String last_id, MPDbAdapter.Table table, int reason);
+
+    /**
+     * Removes records created before time, in milliseconds since the epoch.
+     */
+    public void cleanupEvents(long time, MPDbAdapter.Table table);
+
+    /**
+     * @return the number of records in the table, or -1 if the store can't be read
+     */
+    public int getRowCount(MPDbAdapter.Table table);
+
+    /**
+     * Starts holding writes, so that all records added before the next call
+     * to {@link #endBatch()} are made durable together.
+     */
+    public void beginBatch();
+
+    public void endBatch();
+
+    /**
+     * @return true if an upgrade left records behind for migrateLegacyRows to move.
+     */
+    public boolean hasLegacyRows();
+
+    /**
+     * Moves up to maxRows records left behind by an upgrade into each table.
+     *
+     * @return true if there are more records left to migrate
+     */
+    public boolean migrateLegacyRows(int maxRows);
+
+    /**
+     * @return true if damaged storage was set aside, with records for salvageQuarantinedRows to recover.
+     */
+    public boolean hasQuarantinedRows();
+
+    /**
+     * Recovers up to maxRows records from damaged storage into each table.
+     *
+     * @return true if there are more records left to salvage
+     */
+    public boolean salvageQuarantinedRows(int maxRows);
+
+    /**
+     * Releases files and other resources held by the store. The store
+     * will reopen them on the next call that needs them.
+     */
+    public void close();
+
+    /**
+     * Discards every stored record.
+     */
+    public void deleteDB();
+}
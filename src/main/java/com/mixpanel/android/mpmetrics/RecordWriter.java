@@ -0,0 +1,54 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.mixpanel.android.util.StringUtils;
+
+/**
+ * Joins stored records into a JSON array as they're written, so that a batch
+ * can be sent without ever being held in memory as a whole.
+ *
+ * <p>Records must already be serialized JSON objects. Nothing is parsed or checked here.
+ */
+/* package */ class RecordWriter {
+
+    public RecordWriter(Writer out) {
+        mOut = out;
+        mRecordCount = 0;
+        mLength = 0;
+    }
+
+    public void write(String record) throws IOException {
+        mOut.write(0 == mRecordCount ? '[' : ',');
+        mOut.write(record);
+        mRecordCount++;
+        mLength += StringUtils.utf8Length(record) + 1;
+    }
+
+    /**
+     * Closes the array and flushes the underlying Writer, without closing it.
+     */
+    public void finish() throws IOException {
+        if (0 == mRecordCount) {
+            mOut.write('[');
+            mLength++;
+        }
+        mOut.write(']');
+        mLength++;
+        mOut.flush();
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    // In bytes, once encoded as UTF-8
+    public int getLength() {
+        return mLength;
+    }
+
+    private final Writer mOut;
+    private int mRecordCount;
+    private int mLength;
+}
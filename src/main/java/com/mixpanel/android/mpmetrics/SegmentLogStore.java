@@ -0,0 +1,559 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A RecordStore that appends records to memory-mapped segment files instead of SQLite.
+ *
+ * <p>Each table is a directory of fixed-size segment files, holding records back to back
+ * as length-prefixed, CRC-checked frames:
+ *
+ * <pre>
+ *     int length | int crc32 | long created_at | length bytes of UTF-8 JSON
+ * </pre>
+ *
+ * Adding a record copies its frame into the mapped segment. Cleaning up sent records
+ * only moves a read cursor forward, and segments are deleted once the cursor is past them.
+ * The cursor is kept in a small mapped file of its own, so it survives restarts.
+ *
+ * <p>A record's id is the position just past its frame in the log (the segment number
+ * times SEGMENT_SIZE, plus the offset into the segment) so ids always increase, like _ids in SQLite.
+ *
+ * <p>When a table is opened, the log is scanned from the cursor to find the number of
+ * records waiting and where writing left off. A frame with a zero length or a bad CRC ends
+ * its segment, so a write torn by a crash costs only the records after it in that segment,
+ * and writing picks up again in a fresh segment.
+ *
+ * <p>Records are always stored as plain JSON. com.mixpanel.android.MPConfig.CompressStoredRecords
+ * only applies to MPDbAdapter.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used
+ * by a single thread.
+ */
+/* package */ class SegmentLogStore implements RecordStore {
+    private static final String LOGTAG = "MixpanelAPI";
+
+    private static final String DIRECTORY_NAME = "mixpanel_log";
+
+    // The size of every segment file, and so the largest frame that can be stored.
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int FRAME_HEADER_SIZE = 16;
+
+    // Segments mapped at once for each table. Reads and writes usually touch one or two.
+    private static final int MAX_MAPPED_SEGMENTS = 4;
+
+    public SegmentLogStore(Context context, MPConfig config) {
+        this(context, DIRECTORY_NAME, config);
+    }
+
+    public SegmentLogStore(Context context, String name, MPConfig config) {
+        mDirectory = context.getDir(name, Context.MODE_PRIVATE);
+        mBatchSize = config.getFlushBatchSize();
+        mBatchMaxBytes = config.getFlushBatchMaxBytes();
+        mLogs = new EnumMap<MPDbAdapter.Table, TableLog>(MPDbAdapter.Table.class);
+        mInBatch = false;
+    }
+
+    @Override
+    public int addJSON(JSONObject j, MPDbAdapter.Table table) {
+        final String tableName = table.getName();
+        final String data = j.toString();
+        if (null == data) {
+            Log.e(LOGTAG, "addJSON " + tableName + " given a record that can't be serialized, dropping it.");
+            return getRowCount(table);
+        }
+
+        try {
+            final TableLog log = getLog(table);
+            if (! log.append(utf8(data), System.currentTimeMillis())) {
+                Log.e(LOGTAG, "addJSON " + tableName + " given a record too large to store, dropping it.");
+            } else if (! mInBatch) {
+                log.force();
+            }
+            return log.getCount();
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "addJSON " + tableName + " FAILED.", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public String[] generateDataString(MPDbAdapter.Table table) {
+        return generateDataString(table, mBatchSize, mBatchMaxBytes);
+    }
+
+    /**
+     * Like generateDataString(Table), but with explicit limits on the size of the batch,
+     * with the same meaning as in {@link MPDbAdapter#generateDataString(MPDbAdapter.Table, int, int)}.
+     */
+    @Override
+    public String[] generateDataString(MPDbAdapter.Table table, int maxRows, int maxBytes) {
+        final StringWriter batch = new StringWriter();
+        final RecordWriter out = new RecordWriter(batch);
+        try {
+            final String lastId = writeDataString(table, maxRows, maxBytes, out);
+            out.finish();
+            if (null != lastId && out.getRecordCount() > 0) {
+                final String[] ret = {lastId, batch.toString(), Integer.toString(out.getRecordCount())};
+                return ret;
+            }
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "generateDataString " + table.getName(), e);
+        }
+        return null;
+    }
+
+    @Override
+    public String writeDataString(MPDbAdapter.Table table, int maxRows, int maxBytes, RecordWriter out) throws IOException {
+        final TableLog log = getLog(table);
+        int rowsInBatch = 0;
+        int batchBytes = 2; // For the brackets
+        long position = log.getReadPosition();
+        long lastId = -1;
+        while (rowsInBatch < Math.max(1, maxRows) && log.readFrame(position)) {
+            final int rowBytes = log.getFrameData().length + (rowsInBatch > 0 ? 1 : 0);
+            if (rowsInBatch > 0 && batchBytes + rowBytes > maxBytes) {
+                break; // This row will lead off the next batch
+            }
+
+            out.write(new String(log.getFrameData(), "UTF-8"));
+            batchBytes += rowBytes;
+            rowsInBatch++;
+            lastId = log.getFrameEnd();
+            position = lastId;
+        }
+
+        return rowsInBatch > 0 ? Long.toString(lastId) : null;
+    }
+
+    @Override
+    public void cleanupEvents(String last_id, MPDbAdapter.Table table) {
+        try {
+            getLog(table).advanceTo(Long.parseLong(last_id));
+        } catch (final NumberFormatException e) {
+            Log.e(LOGTAG, "cleanupEvents " + table.getName() + " given a bad id " + last_id, e);
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "cleanupEvents " + table.getName() + " by id FAILED.", e);
+        }
+    }
+
+    // There's no dead letter log, so refused records are only logged and discarded.
+    @Override
+    public void deadLetter(String last_id, MPDbAdapter.Table table, int reason) {
+        Log.w(LOGTAG, "Discarding " + table.getName() + " records up to " + last_id + ", refused with reason " + reason);
+        cleanupEvents(last_id, table);
+    }
+
+    @Override
+    public void cleanupEvents(long time, MPDbAdapter.Table table) {
+        try {
+            getLog(table).expire(time);
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "cleanupEvents " + table.getName() + " by time FAILED.", e);
+        }
+    }
+
+    @Override
+    public int getRowCount(MPDbAdapter.Table table) {
+        try {
+            return getLog(table).getCount();
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not count records in " + table.getName(), e);
+            return -1;
+        }
+    }
+
+    @Override
+    public void beginBatch() {
+        mInBatch = true;
+    }
+
+    @Override
+    public void endBatch() {
+        if (! mInBatch) {
+            return;
+        }
+
+        mInBatch = false;
+        for (final TableLog log : mLogs.values()) {
+            log.force();
+        }
+    }
+
+    // Segment logs have no older format to migrate from, and a damaged frame only
+    // costs the rest of its segment, so there is never anything set aside.
+    @Override
+    public boolean hasLegacyRows() {
+        return false;
+    }
+
+    @Override
+    public boolean migrateLegacyRows(int maxRows) {
+        return false;
+    }
+
+    @Override
+    public boolean hasQuarantinedRows() {
+        return false;
+    }
+
+    @Override
+    public boolean salvageQuarantinedRows(int maxRows) {
+        return false;
+    }
+
+    /**
+     * Writes out and unmaps all segments. What's known about each table stays
+     * in memory, so reopening doesn't need another scan.
+     */
+    @Override
+    public void close() {
+        endBatch();
+        for (final TableLog log : mLogs.values()) {
+            log.close();
+        }
+    }
+
+    @Override
+    public void deleteDB() {
+        mInBatch = false;
+        for (final TableLog log : mLogs.values()) {
+            log.close();
+        }
+        mLogs.clear();
+
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            final File[] files = new File(mDirectory, table.getName()).listFiles();
+            if (null != files) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private TableLog getLog(MPDbAdapter.Table table) throws IOException {
+        TableLog ret = mLogs.get(table);
+        if (null == ret) {
+            ret = new TableLog(new File(mDirectory, table.getName()));
+            mLogs.put(table, ret);
+        }
+        return ret;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private static int frameCrc(byte[] data, long createdAt) {
+        final CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (createdAt >>> shift));
+        }
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The segments and read cursor for a single table.
+     */
+    private static class TableLog {
+        public TableLog(File directory) throws IOException {
+            directory.mkdirs();
+            mDirectory = directory;
+            mSegments = new LinkedHashMap<Long, MappedByteBuffer>(MAX_MAPPED_SEGMENTS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                    if (size() <= MAX_MAPPED_SEGMENTS) {
+                        return false;
+                    }
+                    // endBatch only syncs the segments still in the map, so sync this one before it goes
+                    eldest.getValue().force();
+                    return true;
+                }
+            };
+
+            mCursor = mapFile(new File(directory, "cursor"), 8);
+            mReadPosition = mCursor.getLong(0);
+
+            // Find the segments on disk, and clear out any the cursor had already
+            // moved past when we last stopped.
+            final long readSegment = mReadPosition / SEGMENT_SIZE;
+            long lastSegment = readSegment;
+            final String[] names = directory.list();
+            if (null != names) {
+                for (final String name : names) {
+                    final long index = parseSegmentIndex(name);
+                    if (index < 0) {
+                        continue;
+                    } else if (index < readSegment) {
+                        new File(directory, name).delete();
+                    } else {
+                        lastSegment = Math.max(lastSegment, index);
+                    }
+                }
+            }
+            mFirstSegment = readSegment;
+
+            // Count the waiting frames, and find where the last good one ends.
+            mWritePosition = (lastSegment + 1) * SEGMENT_SIZE;
+            mCount = 0;
+            long end = mReadPosition;
+            while (readFrame(end)) {
+                end = mFrameEnd;
+                mCount++;
+            }
+
+            // If anything follows the last good frame, start over in a fresh segment
+            // rather than leave a torn frame between records.
+            if (end / SEGMENT_SIZE < lastSegment || ! isEmptyAt(end)) {
+                mWritePosition = (lastSegment + 1) * SEGMENT_SIZE;
+            } else {
+                mWritePosition = end;
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getReadPosition() {
+            return mReadPosition;
+        }
+
+        public long getFrameEnd() {
+            return mFrameEnd;
+        }
+
+        public byte[] getFrameData() {
+            return mFrameData;
+        }
+
+        /**
+         * Appends a frame to the log.
+         *
+         * @return false if the data is too large to fit in a segment
+         */
+        public boolean append(byte[] data, long createdAt) throws IOException {
+            final int frameSize = FRAME_HEADER_SIZE + data.length;
+            if (frameSize > SEGMENT_SIZE) {
+                return false;
+            }
+
+            long position = mWritePosition;
+            if ((position % SEGMENT_SIZE) + frameSize > SEGMENT_SIZE) {
+                position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            }
+
+            final MappedByteBuffer segment = getSegment(position / SEGMENT_SIZE);
+            final int offset = (int) (position % SEGMENT_SIZE);
+            final ByteBuffer view = segment.duplicate();
+            view.position(offset + FRAME_HEADER_SIZE);
+            view.put(data);
+            segment.putLong(offset + 8, createdAt);
+            segment.putInt(offset + 4, frameCrc(data, createdAt));
+            // The length goes last, so a reader never finds a frame before it is complete.
+            segment.putInt(offset, data.length);
+
+            mWritePosition = position + frameSize;
+            mCount++;
+            return true;
+        }
+
+        /**
+         * Reads the first good frame at or after position, making it available through
+         * getFrameEnd(), getFrameData() and mFrameCreatedAt.
+         *
+         * @return false if there are no more frames in the log
+         */
+        public boolean readFrame(long position) throws IOException {
+            while (position < mWritePosition) {
+                final long index = position / SEGMENT_SIZE;
+                final int offset = (int) (position % SEGMENT_SIZE);
+                final MappedByteBuffer segment = offset + FRAME_HEADER_SIZE <= SEGMENT_SIZE ? findSegment(index) : null;
+                if (null != segment) {
+                    final int length = segment.getInt(offset);
+                    if (length > 0 && length <= SEGMENT_SIZE - offset - FRAME_HEADER_SIZE) {
+                        final byte[] data = new byte[length];
+                        final ByteBuffer view = segment.duplicate();
+                        view.position(offset + FRAME_HEADER_SIZE);
+                        view.get(data);
+
+                        final long createdAt = segment.getLong(offset + 8);
+                        if (segment.getInt(offset + 4) == frameCrc(data, createdAt)) {
+                            mFrameEnd = position + FRAME_HEADER_SIZE + length;
+                            mFrameCreatedAt = createdAt;
+                            mFrameData = data;
+                            return true;
+                        }
+                    }
+                }
+
+                // Nothing more to read in this segment
+                position = (index + 1) * SEGMENT_SIZE;
+            }
+            return false;
+        }
+
+        /**
+         * Moves the cursor past every frame ending at or before position.
+         */
+        public void advanceTo(long position) throws IOException {
+            while (mReadPosition < position && readFrame(mReadPosition) && mFrameEnd <= position) {
+                mReadPosition = mFrameEnd;
+                mCount--;
+            }
+            saveCursor();
+        }
+
+        /**
+         * Moves the cursor past every frame created at or before time. Frames are appended in
+         * the order they're created, so this stops at the first newer frame.
+         */
+        public void expire(long time) throws IOException {
+            boolean expired = false;
+            while (readFrame(mReadPosition) && mFrameCreatedAt <= time) {
+                mReadPosition = mFrameEnd;
+                mCount--;
+                expired = true;
+            }
+            if (expired) {
+                saveCursor();
+            }
+        }
+
+        public void force() {
+            for (final MappedByteBuffer segment : mSegments.values()) {
+                segment.force();
+            }
+        }
+
+        public void close() {
+            force();
+            mSegments.clear();
+            mCursor = null;
+        }
+
+        private void saveCursor() throws IOException {
+            if (null == mCursor) {
+                mCursor = mapFile(new File(mDirectory, "cursor"), 8);
+            }
+            mCursor.putLong(0, mReadPosition);
+            mCursor.force();
+
+            // Segments wholly behind the cursor are done with.
+            final long readSegment = mReadPosition / SEGMENT_SIZE;
+            for (long index = mFirstSegment; index < readSegment; index++) {
+                mSegments.remove(index);
+                getSegmentFile(index).delete();
+            }
+            mFirstSegment = Math.max(mFirstSegment, readSegment);
+        }
+
+        private boolean isEmptyAt(long position) throws IOException {
+            final int offset = (int) (position % SEGMENT_SIZE);
+            if (offset + FRAME_HEADER_SIZE > SEGMENT_SIZE) {
+                return true;
+            }
+            final MappedByteBuffer segment = findSegment(position / SEGMENT_SIZE);
+            return null == segment || 0 == segment.getInt(offset);
+        }
+
+        // Maps a segment that's already on disk, or returns null if it was never written to.
+        // Only append creates segments, so a table that's only read costs no disk space.
+        private MappedByteBuffer findSegment(long index) throws IOException {
+            MappedByteBuffer ret = mSegments.get(index);
+            if (null == ret) {
+                final File file = getSegmentFile(index);
+                if (! file.exists()) {
+                    return null;
+                }
+                ret = mapFile(file, SEGMENT_SIZE);
+                mSegments.put(index, ret);
+            }
+            return ret;
+        }
+
+        private MappedByteBuffer getSegment(long index) throws IOException {
+            MappedByteBuffer ret = mSegments.get(index);
+            if (null == ret) {
+                ret = mapFile(getSegmentFile(index), SEGMENT_SIZE);
+                mSegments.put(index, ret);
+            }
+            return ret;
+        }
+
+        private File getSegmentFile(long index) {
+            return new File(mDirectory, "segment-" + index);
+        }
+
+        private static long parseSegmentIndex(String name) {
+            if (! name.startsWith("segment-")) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(name.substring("segment-".length()));
+            } catch (final NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Maps a file of exactly size bytes, creating it full of zeros if needed. New files are
+        // written out in full rather than left sparse, so that running out of disk space shows
+        // up here as an IOException, instead of as a crash when a mapped page is first touched.
+        private static MappedByteBuffer mapFile(File file, int size) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    final byte[] zeros = new byte[Math.min(size, 64 * 1024)];
+                    raf.seek(raf.length());
+                    for (long remaining = size - raf.length(); remaining > 0; remaining -= zeros.length) {
+                        raf.write(zeros, 0, (int) Math.min(remaining, zeros.length));
+                    }
+                }
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private final File mDirectory;
+        private final Map<Long, MappedByteBuffer> mSegments;
+        private MappedByteBuffer mCursor;
+        private long mFirstSegment;
+        private long mReadPosition;
+        private long mWritePosition;
+        private int mCount;
+
+        // The frame found by the last call to readFrame
+        private long mFrameEnd;
+        private long mFrameCreatedAt;
+        private byte[] mFrameData;
+    }
+
+    private final File mDirectory;
+    private final int mBatchSize;
+    private final int mBatchMaxBytes;
+    private final Map<MPDbAdapter.Table, TableLog> mLogs;
+    private boolean mInBatch;
+}
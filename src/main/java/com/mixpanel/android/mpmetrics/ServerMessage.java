@@ -1,38 +1,47 @@
 package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.mixpanel.android.util.StringUtils;
+
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 /* package */ class ServerMessage {
 
+    public ServerMessage() {
+        this(new HttpURLConnectionTransport());
+    }
+
+    public ServerMessage(Transport transport) {
+        mGzipRequests = false;
+        mGzipLevel = MPConfig.DEFAULT_GZIP_LEVEL;
+        mTransport = transport;
+    }
+
+    public ServerMessage(MPConfig config, Transport transport) {
+        mGzipRequests = config.getGzipRequests();
+        mGzipLevel = config.getGzipLevel();
+        mTransport = transport;
+    }
+
     public boolean isOnline(Context context) {
-        boolean isOnline;
-        try {
-            final ConnectivityManager cm =
-                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            final NetworkInfo netInfo = cm.getActiveNetworkInfo();
-            isOnline = netInfo != null && netInfo.isConnectedOrConnecting();
-            if (MPConfig.DEBUG) Log.d(LOGTAG, "ConnectivityManager says we " + (isOnline ? "are" : "are not") + " online");
-        } catch (final SecurityException e) {
-            isOnline = true;
-            if (MPConfig.DEBUG) Log.d(LOGTAG, "Don't have permission to check connectivity, assuming online");
-        }
+        final boolean isOnline = ConnectivityMonitor.getInstance(context).isOnline();
+        if (MPConfig.DEBUG) Log.d(LOGTAG, "ConnectivityManager says we " + (isOnline ? "are" : "are not") + " online");
         return isOnline;
     }
 
@@ -41,16 +50,28 @@ import java.util.List;
             return null;
         }
 
+        // Endpoints that have been failing are skipped until they've had time to recover
+        final EndpointHealth health = EndpointHealth.getInstance(context);
         byte[] response = null;
-        for (String url : urls) {
+        for (String url : health.order(urls)) {
             try {
                 response = performRequest(url, null);
+                health.recordSuccess(url);
                 break;
             } catch (final MalformedURLException e) {
                 Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+            } catch (final ServerStatusException e) {
+                if (MPConfig.DEBUG)
+                    Log.d(LOGTAG, "Cannot get " + url + ".", e);
+                if (e.isRejection()) {
+                    health.recordSuccess(url); // The server answered, it just didn't like the request
+                } else {
+                    health.recordFailure(url);
+                }
             } catch (final IOException e) {
                 if (MPConfig.DEBUG)
                     Log.d(LOGTAG, "Cannot get " + url + ".", e);
+                health.recordFailure(url);
             } catch (final OutOfMemoryError e) {
                 Log.e(LOGTAG, "Out of memory when getting to " + url + ".", e);
                 break;
@@ -61,76 +82,196 @@ import java.util.List;
     }
 
     public byte[] performRequest(String endpointUrl, List<NameValuePair> params) throws IOException {
+        final Transport.Body body = null == params ? null : new FormBody(new UrlEncodedFormEntity(params, "UTF-8"));
+        return sendRequest(endpointUrl, body);
+    }
+
+    /**
+     * POSTs json to endpointUrl as an application/json body. The string is encoded
+     * as it's written to the connection, without being copied first.
+     */
+    public byte[] performJsonRequest(String endpointUrl, String json) throws IOException {
+        return sendRequest(endpointUrl, new JsonBody(json));
+    }
+
+    /**
+     * POSTs body to endpointUrl, writing it straight to the connection. Bodies of unknown length are
+     * sent in chunks. The body may be written more than once, if the request has to be retried.
+     */
+    public byte[] performStreamingRequest(String endpointUrl, Transport.Body body) throws IOException {
+        return sendRequest(endpointUrl, body);
+    }
+
+    // GETs endpointUrl if body is null, otherwise POSTs the body
+    private byte[] sendRequest(String endpointUrl, Transport.Body body) throws IOException {
         if (MPConfig.DEBUG) Log.d(LOGTAG, "Attempting request to " + endpointUrl);
-        byte[] response = null;
 
-        // the while(retries) loop is a workaround for a bug in some Android HttpURLConnection
-        // libraries- The underlying library will attempt to reuse stale connections,
-        // meaning the second (or every other) attempt to connect fails with an EOFException.
-        // Apparently this nasty retry logic is the current state of the workaround art.
-        int retries = 0;
-        boolean succeeded = false;
-        while (retries < 3 && !succeeded) {
-            InputStream in = null;
-            OutputStream out = null;
-            BufferedOutputStream bout = null;
-            HttpURLConnection connection = null;
+        final Transport.Body sentBody = null != body && mGzipRequests ? new GzipBody(body, mGzipLevel) : body;
+        final Transport.Response response;
+        try {
+            response = mTransport.execute(endpointUrl, sentBody);
+        } finally {
+            sLastRequestTime = SystemClock.elapsedRealtime();
+        }
+        final int status = response.getStatusCode();
+        if (status >= 400) {
+            final long retryAfter = parseRetryAfter(response.getHeader("Retry-After"), System.currentTimeMillis());
+            throw new ServerStatusException(status, "Request to " + endpointUrl + " failed with status " + status, retryAfter);
+        }
+        return response.getBody();
+    }
+
+    /**
+     * @return the SystemClock.elapsedRealtime() when the last request by any ServerMessage ended,
+     * or -1 if none have been made. A request that reached the network, even if it failed, means
+     * the radio was awake then.
+     */
+    public static long getLastRequestTime() {
+        return sLastRequestTime;
+    }
+
+    /**
+     * Reads a Retry-After header, which is either a number of seconds or an HTTP date.
+     *
+     * @return the time to wait in milliseconds, or -1 if there's no header or it can't be read
+     */
+    /* package */ static long parseRetryAfter(String value, long now) {
+        if (null == value) {
+            return -1;
+        }
+
+        final String trimmed = value.trim();
+        try {
+            final long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (final NumberFormatException e) {
+            ; // Might be a date
+        }
+
+        final SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, httpDate.parse(trimmed).getTime() - now);
+        } catch (final ParseException e) {
+            if (MPConfig.DEBUG) Log.d(LOGTAG, "Can't understand Retry-After header " + value);
+            return -1;
+        }
+    }
+
+    private static class FormBody implements Transport.Body {
+        public FormBody(UrlEncodedFormEntity form) {
+            mForm = form;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/x-www-form-urlencoded";
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mForm.getContentLength();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            mForm.writeTo(out);
+        }
+
+        private final UrlEncodedFormEntity mForm;
+    }
+
+    private static class JsonBody implements Transport.Body {
+        public JsonBody(String json) {
+            mJson = json;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json; charset=utf-8";
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return StringUtils.utf8Length(mJson);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(mJson);
+            writer.flush(); // The caller closes out
+        }
+
+        private final String mJson;
+    }
+
+    // Compresses another body as it's written. The compressed length isn't known until
+    // the body has been written, so it goes out in chunks rather than all at once.
+    private static class GzipBody implements Transport.Body {
+        public GzipBody(Transport.Body body, int level) {
+            mBody = body;
+            mLevel = level;
+        }
 
+        @Override
+        public String getContentType() {
+            return mBody.getContentType();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(out, mLevel);
             try {
-                final URL url = new URL(endpointUrl);
-                connection = (HttpURLConnection) url.openConnection();
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(10000);
-                if (null != params) {
-                    connection.setDoOutput(true);
-                    final UrlEncodedFormEntity form = new UrlEncodedFormEntity(params, "UTF-8");
-                    connection.setRequestMethod("POST");
-                    connection.setFixedLengthStreamingMode((int)form.getContentLength());
-                    out = connection.getOutputStream();
-                    bout = new BufferedOutputStream(out);
-                    form.writeTo(bout);
-                    bout.close();
-                    bout = null;
-                    out.close();
-                    out = null;
-                }
-                in = connection.getInputStream();
-                response = slurp(in);
-                in.close();
-                in = null;
-                succeeded = true;
-            } catch (final EOFException e) {
-                if (MPConfig.DEBUG) Log.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
-                retries = retries + 1;
+                mBody.writeTo(gzip);
+                gzip.finish();
             } finally {
-                if (null != bout)
-                    try { bout.close(); } catch (final IOException e) { ; }
-                if (null != out)
-                    try { out.close(); } catch (final IOException e) { ; }
-                if (null != in)
-                    try { in.close(); } catch (final IOException e) { ; }
-                if (null != connection)
-                    connection.disconnect();
+                gzip.end();
             }
         }
-        return response;
-    }
-
-    // Does not close input streamq
-    private byte[] slurp(final InputStream inputStream)
-        throws IOException {
-        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
-        int nRead;
-        byte[] data = new byte[8192];
+        private final Transport.Body mBody;
+        private final int mLevel;
+    }
 
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    // GZIPOutputStream always compresses at the default level
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        public LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
         }
 
-        buffer.flush();
-        return buffer.toByteArray();
+        // Frees the deflater without closing the stream underneath
+        public void end() {
+            def.end();
+        }
     }
 
+    private final boolean mGzipRequests;
+    private final int mGzipLevel;
+    private final Transport mTransport;
+
+    private static volatile long sLastRequestTime = -1;
+
     private static final String LOGTAG = "MixpanelAPI";
 }
@@ -0,0 +1,45 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.IOException;
+
+/**
+ * Thrown by ServerMessage when the server answers a request with an HTTP error status.
+ */
+/* package */ class ServerStatusException extends IOException {
+    public ServerStatusException(int statusCode, String detailMessage) {
+        this(statusCode, detailMessage, -1);
+    }
+
+    public ServerStatusException(int statusCode, String detailMessage, long retryAfterMillis) {
+        super(detailMessage);
+        mStatusCode = statusCode;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return how long the server asked us to wait before trying again, from its Retry-After header,
+     * or -1 if it didn't say.
+     */
+    public long getRetryAfter() {
+        return mRetryAfterMillis;
+    }
+
+    /**
+     * @return true if the server understood the request and refused what was in it,
+     * so sending the same records again will never succeed.
+     */
+    public boolean isRejection() {
+        return mStatusCode == 400 || // Bad Request
+               mStatusCode == 413 || // Request Entity Too Large
+               mStatusCode == 422;   // Unprocessable Entity
+    }
+
+    private final int mStatusCode;
+    private final long mRetryAfterMillis;
+
+    private static final long serialVersionUID = -2382165442418733294L;
+}
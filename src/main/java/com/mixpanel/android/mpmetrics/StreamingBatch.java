@@ -0,0 +1,75 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * A batch of records that is read out of a RecordStore as it's written to a request,
+ * rather than being built as a String first. Memory use doesn't grow with the size of the batch.
+ *
+ * <p>The records are read again each time the batch is written, so the store must not be
+ * changed while a request with the batch is in progress. After a request, getLastId() and
+ * the counts describe the records that were sent.
+ */
+/* package */ class StreamingBatch implements Transport.Body {
+
+    public StreamingBatch(RecordStore store, MPDbAdapter.Table table, int maxRows, int maxBytes) {
+        mStore = store;
+        mTable = table;
+        mMaxRows = maxRows;
+        mMaxBytes = maxBytes;
+        mLastId = null;
+        mRecordCount = 0;
+        mLength = 0;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1; // Not known until the records have been read
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        final RecordWriter records = new RecordWriter(writer);
+        mLastId = mStore.writeDataString(mTable, mMaxRows, mMaxBytes, records);
+        records.finish();
+        mRecordCount = records.getRecordCount();
+        mLength = records.getLength();
+    }
+
+    /**
+     * @return the id to pass to cleanupEvents once the batch has been sent, or null if it hasn't been written
+     */
+    public String getLastId() {
+        return mLastId;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    private final RecordStore mStore;
+    private final MPDbAdapter.Table mTable;
+    private final int mMaxRows;
+    private final int mMaxBytes;
+    private String mLastId;
+    private int mRecordCount;
+    private int mLength;
+}
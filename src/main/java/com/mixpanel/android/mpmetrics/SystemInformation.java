@@ -3,14 +3,10 @@ package com.mixpanel.android.mpmetrics;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
-import android.Manifest;
-import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -72,6 +68,9 @@ import android.view.WindowManager;
 
         Display display = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
         display.getMetrics(mDisplayMetrics);
+
+        mBluetoothVersion = readBluetoothVersion();
+        mConnectivityMonitor = ConnectivityMonitor.getInstance(mContext);
     }
 
     public String getAppVersionName() { return mAppVersionName; }
@@ -110,46 +109,28 @@ import android.view.WindowManager;
         return ret;
     }
 
+    // The network state below is read by ConnectivityMonitor when it changes, rather than for every event.
+
     // Note this is the *current*, not the canonical network, because it
     // doesn't require special permissions to access. Unreliable for CDMA phones,
     //
     public String getCurrentNetworkOperator() {
-        String ret = null;
-
-        TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-        if (null != telephonyManager)
-            ret = telephonyManager.getNetworkOperatorName();
-
-        return ret;
+        return mConnectivityMonitor.getSnapshot().getNetworkOperator();
     }
 
-
     public Boolean isWifiConnected() {
-        Boolean ret = null;
-
-        if (PackageManager.PERMISSION_GRANTED == mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
-            ConnectivityManager connManager = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo wifiInfo = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-            ret = wifiInfo.isConnected();
-        }
-
-        return ret;
+        return mConnectivityMonitor.getSnapshot().isWifiConnected();
     }
 
     public Boolean isBluetoothEnabled() {
-        Boolean isBluetoothEnabled = null;
-        try {
-            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            if (bluetoothAdapter != null) {
-                isBluetoothEnabled = bluetoothAdapter.isEnabled();
-            }
-        } catch (SecurityException e) {
-            // do nothing since we don't have permissions
-        }
-        return isBluetoothEnabled;
+        return mConnectivityMonitor.getSnapshot().isBluetoothEnabled();
     }
 
     public String getBluetoothVersion() {
+        return mBluetoothVersion;
+    }
+
+    private String readBluetoothVersion() {
         String bluetoothVersion = null;
         if (android.os.Build.VERSION.SDK_INT >= 8) {
             bluetoothVersion = "none";
@@ -164,6 +145,7 @@ import android.view.WindowManager;
     }
 
     private final Context mContext;
+    private final ConnectivityMonitor mConnectivityMonitor;
 
     // Unchanging facts
     private final Boolean mHasNFC;
@@ -171,4 +153,5 @@ import android.view.WindowManager;
     private final DisplayMetrics mDisplayMetrics;
     private final String mAppVersionName;
     private final Integer mAppVersionCode;
+    private final String mBluetoothVersion;
 }
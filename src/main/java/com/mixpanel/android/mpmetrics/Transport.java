@@ -0,0 +1,115 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Carries requests from the Mixpanel library to Mixpanel's servers.
+ *
+ * <p>The library uses HttpURLConnection by default. Apps can supply their own Transport,
+ * for example one built on another HTTP client, or a stand-in server for testing, by naming
+ * its class in the com.mixpanel.android.MPConfig.TransportClass meta-data tag. The class must
+ * be public, with a public constructor that takes no arguments.
+ *
+ * <pre>
+ * {@code
+ * <meta-data android:name="com.mixpanel.android.MPConfig.TransportClass"
+ *     android:value="com.example.MyTransport" />
+ * }
+ * </pre>
+ *
+ * <p>Transports are only used from the library's own background thread, but a single instance
+ * is kept for the life of the process, so it can hold on to connections between requests.
+ */
+public interface Transport {
+
+    /**
+     * Sends a request and returns the server's response, whatever its status.
+     *
+     * @param url the URL to request
+     * @param body the body to POST to the url, or null to GET it
+     * @return the response from the server
+     * @throws IOException if there was no response from the server
+     */
+    public Response execute(String url, Body body) throws IOException;
+
+    /**
+     * The body of a POST request.
+     */
+    public interface Body {
+        /**
+         * @return the value for the Content-Type header
+         */
+        public String getContentType();
+
+        /**
+         * @return the value for the Content-Encoding header, or null if the body isn't encoded
+         */
+        public String getContentEncoding();
+
+        /**
+         * @return the length of the body in bytes, or -1 if it isn't known until the body has been written
+         */
+        public long getContentLength();
+
+        /**
+         * Writes the body to out, without closing out. The body may be written more
+         * than once, if a request has to be retried.
+         */
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A response from the server.
+     */
+    public static class Response {
+        public Response(int statusCode, byte[] body) {
+            this(statusCode, body, null);
+        }
+
+        /**
+         * @param headers the response headers, by name, or null if there weren't any. Names are matched
+         *     without regard to case.
+         */
+        public Response(int statusCode, byte[] body, Map<String, String> headers) {
+            mStatusCode = statusCode;
+            mBody = body;
+            mHeaders = new HashMap<String, String>();
+            if (null != headers) {
+                for (final Map.Entry<String, String> header : headers.entrySet()) {
+                    if (null != header.getKey()) {
+                        mHeaders.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the HTTP status of the response
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        /**
+         * @return the body of the response, or null if there wasn't one
+         */
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return the value of the named header, or null if the response didn't have it
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        private final int mStatusCode;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders;
+    }
+}
@@ -25,4 +25,29 @@ public class StringUtils {
         return sb.toString();
     }
 
+    /**
+     * Static utility method to find the length of a string in UTF-8, without encoding it
+     *
+     * @param chars the characters to measure
+     * @return the number of bytes needed to encode chars as UTF-8
+     */
+    public static int utf8Length(final CharSequence chars) {
+        int ret = 0;
+        final int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+            if (c < 0x80) {
+                ret += 1;
+            } else if (c < 0x800) {
+                ret += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                ret += 4;
+                i++;
+            } else {
+                ret += 3;
+            }
+        }
+        return ret;
+    }
+
 }